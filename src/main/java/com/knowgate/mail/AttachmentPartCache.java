@@ -0,0 +1,244 @@
+package com.knowgate.mail;
+
+/**
+ * © Copyright 2016 the original author.
+ * This file is licensed under the Apache License version 2.0.
+ * You may not use this file except in compliance with the license.
+ * You may obtain a copy of the License at:
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeUtility;
+
+import com.knowgate.debug.DebugFile;
+
+/**
+ * <p>Cache of base64 encoded attachment bodies</p>
+ * Each file is read and encoded once and kept in memory keyed by its path,
+ * last modification date and size. The MimeBodyPart objects returned by this
+ * class share the encoded bytes and write them directly to the output stream
+ * when the message is sent, so repeated sends of the same file neither read
+ * it from disk nor encode it again.<br>
+ * The total size of the encoded bytes kept is bounded, least recently used
+ * files are evicted first. Files larger than the maximum entry size are not cached.
+ * @author Sergio Montoro Ten
+ * @version 9.1
+ */
+public class AttachmentPartCache {
+
+  /**
+   * Default maximum total size of the shared cache, 16Mb
+   */
+  public static final long DEFAULT_MAX_BYTES = 16l*1024l*1024l;
+
+  private final long lMaxBytes;
+  private final long lMaxEntryBytes;
+  private long lTotalBytes;
+  private long lHits, lMisses, lEvictions;
+  private final LinkedHashMap<String,EncodedFile> oEntries;
+
+  private static final AttachmentPartCache oDefault = new AttachmentPartCache(DEFAULT_MAX_BYTES);
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Create cache whose entries may be up to one fourth of its maximum size
+   * @param lMaxBytes long Maximum total size of encoded bytes kept
+   * @throws IllegalArgumentException if lMaxBytes is less than 1
+   */
+  public AttachmentPartCache(long lMaxBytes) throws IllegalArgumentException {
+    this(lMaxBytes, lMaxBytes/4l);
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * @param lMaxBytes long Maximum total size of encoded bytes kept
+   * @param lMaxEntryBytes long Maximum size of a single file
+   * @throws IllegalArgumentException if lMaxBytes is less than 1 or lMaxEntryBytes is greater than lMaxBytes
+   */
+  public AttachmentPartCache(long lMaxBytes, long lMaxEntryBytes) throws IllegalArgumentException {
+    if (lMaxBytes<1l) throw new IllegalArgumentException("AttachmentPartCache maximum size must be greater than zero");
+    if (lMaxEntryBytes>lMaxBytes) throw new IllegalArgumentException("AttachmentPartCache maximum entry size cannot be greater than maximum size");
+    this.lMaxBytes = lMaxBytes;
+    this.lMaxEntryBytes = lMaxEntryBytes;
+    lTotalBytes = lHits = lMisses = lEvictions = 0l;
+    oEntries = new LinkedHashMap<String,EncodedFile>(31, 0.75f, true);
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * @return AttachmentPartCache Cache shared by all MailSessionHandler instances
+   */
+  public static AttachmentPartCache getDefault() {
+    return oDefault;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * <p>Get a body part with the encoded contents of a file</p>
+   * The returned part has its Content-Type and Content-Transfer-Encoding headers set.
+   * Disposition and file name must be set by the caller.
+   * A new MimeBodyPart is returned on each call, but all of them share the same encoded bytes.
+   * @param oFile File
+   * @param sContentType String Content type, for example "application/octet-stream"
+   * @return MimeBodyPart or <b>null</b> if the file is too large to be cached
+   * @throws FileNotFoundException
+   * @throws IOException
+   * @throws MessagingException
+   */
+  public MimeBodyPart getBodyPart(File oFile, String sContentType)
+    throws FileNotFoundException, IOException, MessagingException {
+
+    final long lLength = oFile.length();
+    final long lLastMod = oFile.lastModified();
+    if (0l==lLastMod && !oFile.exists())
+      throw new FileNotFoundException(oFile.getPath());
+
+    // base64 output is 4/3 of input size plus CRLF every 76 characters
+    if (((lLength+2l)/3l)*4l+((lLength/57l)+1l)*2l > lMaxEntryBytes)
+      return null;
+
+    final String sKey = oFile.getAbsolutePath();
+
+    EncodedFile oEnc;
+    synchronized (this) {
+      oEnc = oEntries.get(sKey);
+      if (oEnc!=null && (oEnc.lastModified!=lLastMod || oEnc.length!=lLength)) {
+        oEntries.remove(sKey);
+        lTotalBytes -= oEnc.encoded.length;
+        oEnc = null;
+      }
+      if (null==oEnc) lMisses++; else lHits++;
+    }
+
+    if (null==oEnc) {
+      if (DebugFile.trace) DebugFile.writeln("AttachmentPartCache.getBodyPart() encoding "+sKey);
+      oEnc = new EncodedFile(lLastMod, lLength, encode(oFile, (int) lLength));
+      synchronized (this) {
+        EncodedFile oPrev = oEntries.put(sKey, oEnc);
+        if (oPrev!=null) lTotalBytes -= oPrev.encoded.length;
+        lTotalBytes += oEnc.encoded.length;
+        Iterator<Map.Entry<String,EncodedFile>> oIter = oEntries.entrySet().iterator();
+        while (lTotalBytes>lMaxBytes && oIter.hasNext()) {
+          EncodedFile oEldest = oIter.next().getValue();
+          if (oEldest!=oEnc) {
+            oIter.remove();
+            lTotalBytes -= oEldest.encoded.length;
+            lEvictions++;
+          }
+        } // wend
+      }
+    }
+
+    InternetHeaders oHeaders = new InternetHeaders();
+    oHeaders.setHeader("Content-Type", sContentType);
+    oHeaders.setHeader("Content-Transfer-Encoding", "base64");
+    return new MimeBodyPart(oHeaders, oEnc.encoded);
+  } // getBodyPart
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Remove all cached files
+   */
+  public synchronized void clear() {
+    oEntries.clear();
+    lTotalBytes = 0l;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * @return long Total size of encoded bytes currently kept
+   */
+  public synchronized long getSize() {
+    return lTotalBytes;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  public long getMaxSize() {
+    return lMaxBytes;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  public long getMaxEntrySize() {
+    return lMaxEntryBytes;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  public synchronized long getHitCount() {
+    return lHits;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  public synchronized long getMissCount() {
+    return lMisses;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  public synchronized long getEvictionCount() {
+    return lEvictions;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  private static byte[] encode(File oFile, int iLength) throws IOException, MessagingException {
+    ByteArrayOutputStream oEncoded = new ByteArrayOutputStream(((iLength+2)/3)*4+((iLength/57)+1)*2);
+    InputStream oIn = new BufferedInputStream(new FileInputStream(oFile));
+    try {
+      OutputStream oOut = MimeUtility.encode(oEncoded, "base64");
+      byte[] aBuffer = new byte[8192];
+      int iRead;
+      while ((iRead = oIn.read(aBuffer))>0)
+        oOut.write(aBuffer, 0, iRead);
+      // closing the encoder writes the last padded group
+      oOut.close();
+    } finally {
+      oIn.close();
+    }
+    return oEncoded.toByteArray();
+  } // encode
+
+  // ---------------------------------------------------------------------------
+
+  static class EncodedFile {
+    long lastModified;
+    long length;
+    byte[] encoded;
+
+    EncodedFile(long lLastModified, long lLength, byte[] aEncoded) {
+      lastModified = lLastModified;
+      length = lLength;
+      encoded = aEncoded;
+    }
+  } // EncodedFile
+
+} // AttachmentPartCache
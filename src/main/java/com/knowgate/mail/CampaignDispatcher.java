@@ -0,0 +1,204 @@
+package com.knowgate.mail;
+
+/**
+ * © Copyright 2016 the original author.
+ * This file is licensed under the Apache License version 2.0.
+ * You may not use this file except in compliance with the license.
+ * You may obtain a copy of the License at:
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.
+ */
+
+import java.io.IOException;
+import java.io.PrintStream;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.internet.MimeMessage;
+
+import com.knowgate.debug.DebugFile;
+import com.knowgate.debug.StackTraceUtil;
+
+/**
+ * <p>Send a mail campaign through several concurrent SMTP connections</p>
+ * Recipients are spread across a bounded pool of worker threads. Each worker
+ * takes the next pending recipient, asks a MessageFactory for its message and
+ * sends it through a Transport borrowed from an SmtpTransportPool, so the
+ * number of simultaneous connections is bounded by both the number of workers
+ * and the pool maximum size.
+ * @author Sergio Montoro Ten
+ * @version 9.1
+ */
+public class CampaignDispatcher {
+
+  private final SmtpTransportPool oPool;
+  private final int nWorkers;
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Composes the message to be sent to each recipient
+   */
+  public interface MessageFactory {
+    /**
+     * Called concurrently from the worker threads.
+     * @param iRecipient int Recipient index [0..aRecipients.length-1]
+     * @return MimeMessage with its recipients set or <b>null</b> if this recipient must be skipped
+     * @throws Exception
+     */
+    MimeMessage newMessage(int iRecipient) throws Exception;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Outcome of sending the message to a single recipient
+   */
+  public static class Result {
+    private final String sRecipient;
+    private final boolean bSent;
+    private final Exception oError;
+
+    Result(String sRecipient, boolean bSent, Exception oError) {
+      this.sRecipient = sRecipient;
+      this.bSent = bSent;
+      this.oError = oError;
+    }
+
+    /**
+     * @return String Recipient as given to dispatch()
+     */
+    public String getRecipient() {
+      return sRecipient;
+    }
+
+    /**
+     * @return boolean <b>true</b> if the message was accepted by the server
+     */
+    public boolean isSent() {
+      return bSent;
+    }
+
+    /**
+     * @return Exception Error that prevented the message from being sent or <b>null</b>
+     */
+    public Exception getError() {
+      return oError;
+    }
+  } // Result
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * @param oPool SmtpTransportPool from which worker threads borrow their connections
+   * @param nConnections int Number of worker threads
+   * @throws IllegalArgumentException if nConnections is less than 1
+   */
+  public CampaignDispatcher(SmtpTransportPool oPool, int nConnections) throws IllegalArgumentException {
+    if (null==oPool) throw new NullPointerException("CampaignDispatcher SmtpTransportPool may not be null");
+    if (nConnections<1) throw new IllegalArgumentException("CampaignDispatcher number of connections must be at least 1");
+    this.oPool = oPool;
+    this.nWorkers = nConnections;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * <p>Send a message to each recipient and wait until all of them have been processed</p>
+   * For each recipient a line "OK <i>recipient</i>" or "ERROR <i>recipient</i> <i>cause</i>"
+   * is printed at oOut as soon as its message is sent.
+   * @param aRecipients String[] Recipients
+   * @param oFactory MessageFactory
+   * @param oOut PrintStream Output stream for messages verbose, may be null
+   * @return Result[] One result per recipient, <b>null</b> for skipped recipients
+   * @throws InterruptedException
+   */
+  public Result[] dispatch(final String[] aRecipients, final MessageFactory oFactory, final PrintStream oOut)
+    throws InterruptedException {
+
+    if (DebugFile.trace) {
+      DebugFile.writeln("Begin CampaignDispatcher.dispatch(String["+String.valueOf(aRecipients.length)+"], [MessageFactory], [PrintStream])");
+      DebugFile.incIdent();
+    }
+
+    final Result[] aResults = new Result[aRecipients.length];
+    final AtomicInteger oNext = new AtomicInteger(0);
+    final int nThreads = Math.min(nWorkers, Math.max(1, aRecipients.length));
+
+    ExecutorService oExec = Executors.newFixedThreadPool(nThreads);
+    for (int t=0; t<nThreads; t++) {
+      oExec.execute(new Runnable() {
+        public void run() {
+          int r;
+          while ((r = oNext.getAndIncrement())<aRecipients.length) {
+            aResults[r] = send(r, aRecipients[r], oFactory, oOut);
+          }
+        }
+      });
+    }
+    oExec.shutdown();
+    try {
+      while (!oExec.awaitTermination(1l, TimeUnit.MINUTES)) ;
+    } catch (InterruptedException xcpt) {
+      oExec.shutdownNow();
+      throw xcpt;
+    }
+
+    if (DebugFile.trace) {
+      DebugFile.decIdent();
+      DebugFile.writeln("End CampaignDispatcher.dispatch()");
+    }
+
+    return aResults;
+  } // dispatch
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Count how many messages were successfully sent
+   * @param aResults Result[] As returned by dispatch()
+   * @return int
+   */
+  public static int countSent(Result[] aResults) {
+    int nSent = 0;
+    for (int r=0; r<aResults.length; r++)
+      if (aResults[r]!=null && aResults[r].isSent()) nSent++;
+    return nSent;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  private Result send(int iRecipient, String sRecipient, MessageFactory oFactory, PrintStream oOut) {
+    try {
+      MimeMessage oMsg = oFactory.newMessage(iRecipient);
+      if (null==oMsg) return null;
+      oMsg.setSentDate(new java.util.Date());
+      oMsg.saveChanges();
+      oPool.send(oMsg, oMsg.getAllRecipients());
+      if (oOut!=null) oOut.println("OK "+sRecipient);
+      return new Result(sRecipient, true, null);
+    } catch (Exception xcpt) {
+      String sCause = "";
+      if (xcpt.getCause()!=null)
+        sCause = " cause "+xcpt.getCause().getClass().getName()+" "+xcpt.getCause().getMessage();
+      if (oOut==null) {
+        if (DebugFile.trace) {
+          DebugFile.writeln("ERROR "+sRecipient+" "+xcpt.getClass().getName()+" "+xcpt.getMessage()+sCause);
+          try {
+            DebugFile.writeln(StackTraceUtil.getStackTrace(xcpt));
+          } catch (IOException ignore) { }
+        }
+      } else {
+        oOut.println("ERROR "+sRecipient+" "+xcpt.getClass().getName()+" "+xcpt.getMessage()+sCause);
+      }
+      return new Result(sRecipient, false, xcpt);
+    }
+  } // send
+
+} // CampaignDispatcher
@@ -0,0 +1,466 @@
+package com.knowgate.mail;
+
+/**
+ * © Copyright 2016 the original author.
+ * This file is licensed under the Apache License version 2.0.
+ * You may not use this file except in compliance with the license.
+ * You may obtain a copy of the License at:
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.charset.Charset;
+
+import java.util.HashMap;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+
+import com.knowgate.xhtml.FastStreamReplacer;
+import com.knowgate.xhtml.KeyResolver;
+import com.knowgate.xhtml.MergeTemplate;
+
+/**
+ * <p>Mail merge template with its literal text already encoded for transmission</p>
+ * The literal segments of a MergeTemplate are converted once into the target
+ * character set and Content-Transfer-Encoding, so rendering the template for
+ * each recipient only has to encode the values that replace its markers.<br>
+ * For quoted-printable, every literal segment is encoded as if it started a new
+ * line, and a soft line break is inserted before it when the preceding value
+ * does not end at the start of a line. Soft line breaks are removed by decoders,
+ * so the decoded text is the same as if the whole body had been encoded at once.
+ * Whitespace at the end of a segment is always encoded, because what follows it
+ * is not known until the template is rendered.<br>
+ * For base64, each literal segment is pre-encoded in three variants, one for each
+ * number of bytes pending from the previous value, and the encoded text of each
+ * segment starts on a new line.<br>
+ * Instances of this class are immutable and may be rendered concurrently.
+ * @author Sergio Montoro Ten
+ * @version 9.1
+ * @since 9.1
+ */
+public class EncodedTemplate {
+
+  public static final String QUOTED_PRINTABLE = "quoted-printable";
+  public static final String BASE64 = "base64";
+
+  private static final int MAX_LINE_LENGTH = 76;
+  private static final byte[] CRLF = new byte[]{'\r','\n'};
+  private static final byte[] SOFT_BREAK = new byte[]{'=','\r','\n'};
+  private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+  private static final byte[] BASE64_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+
+  private final MergeTemplate oTemplate;
+  private final Charset oCharset;
+  private final String sTransferEncoding;
+  private final byte[][] aLiterals;
+  private final QPSegment[] aQPSegments;
+  private final QPSegment[] aQPSegmentsNoLF;
+  private final B64Segment[][] aB64Segments;
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Create template choosing the transfer encoding from the proportion of non ASCII
+   * bytes in its literal text, like JavaMail does for text parts
+   * @param oTemplate MergeTemplate
+   * @param oCharset Charset
+   */
+  public EncodedTemplate(MergeTemplate oTemplate, Charset oCharset) {
+    this(oTemplate, oCharset, chooseTransferEncoding(oTemplate, oCharset));
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * @param oTemplate MergeTemplate
+   * @param oCharset Charset
+   * @param sTransferEncoding String "quoted-printable" or "base64"
+   * @throws IllegalArgumentException If sTransferEncoding is neither "quoted-printable" nor "base64"
+   */
+  public EncodedTemplate(MergeTemplate oTemplate, Charset oCharset, String sTransferEncoding)
+    throws IllegalArgumentException {
+
+    if (!QUOTED_PRINTABLE.equalsIgnoreCase(sTransferEncoding) && !BASE64.equalsIgnoreCase(sTransferEncoding))
+      throw new IllegalArgumentException("EncodedTemplate unsupported transfer encoding "+sTransferEncoding);
+
+    this.oTemplate = oTemplate;
+    this.oCharset = oCharset;
+    this.sTransferEncoding = sTransferEncoding.toLowerCase();
+
+    final int nSegments = oTemplate.getSlotCount()+1;
+    aLiterals = new byte[nSegments][];
+    for (int s=0; s<nSegments; s++)
+      aLiterals[s] = oTemplate.getLiteral(s).getBytes(oCharset);
+
+    if (QUOTED_PRINTABLE.equals(this.sTransferEncoding)) {
+      aQPSegments = new QPSegment[nSegments];
+      aQPSegmentsNoLF = new QPSegment[nSegments];
+      for (int s=0; s<nSegments; s++) {
+        final byte[] aLiteral = aLiterals[s];
+        aQPSegments[s] = new QPSegment(aLiteral, 0);
+        if (aLiteral.length>0 && aLiteral[0]=='\n')
+          aQPSegmentsNoLF[s] = new QPSegment(aLiteral, 1);
+      }
+      aB64Segments = null;
+    } else {
+      aB64Segments = new B64Segment[nSegments][3];
+      for (int s=0; s<nSegments; s++)
+        for (int p=0; p<3; p++)
+          if (aLiterals[s].length>=(3-p)%3)
+            aB64Segments[s][p] = new B64Segment(aLiterals[s], p);
+      aQPSegments = aQPSegmentsNoLF = null;
+    }
+  } // EncodedTemplate
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * @param oTemplate MergeTemplate
+   * @param oCharset Charset
+   * @return String "base64" if more than one third of the literal bytes are not ASCII, "quoted-printable" otherwise
+   */
+  public static String chooseTransferEncoding(MergeTemplate oTemplate, Charset oCharset) {
+    long lTotal = 0l, lNonAscii = 0l;
+    for (int s=0; s<=oTemplate.getSlotCount(); s++) {
+      byte[] aLiteral = oTemplate.getLiteral(s).getBytes(oCharset);
+      lTotal += aLiteral.length;
+      for (int b=0; b<aLiteral.length; b++)
+        if (aLiteral[b]<0) lNonAscii++;
+    }
+    return lNonAscii*3l>lTotal ? BASE64 : QUOTED_PRINTABLE;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  public MergeTemplate getTemplate() {
+    return oTemplate;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  public Charset getCharset() {
+    return oCharset;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  public String getTransferEncoding() {
+    return sTransferEncoding;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * <p>Render template writing transfer encoded bytes</p>
+   * {#System.Date} and {#Sistema.Fecha} are replaced as with FastStreamReplacer.
+   * @param oResolver KeyResolver
+   * @param oOut OutputStream
+   * @throws IOException
+   */
+  public void render(KeyResolver oResolver, OutputStream oOut) throws IOException {
+    final KeyResolver oKeys = FastStreamReplacer.withBuiltInKeys(oResolver);
+    final int nSlots = oTemplate.getSlotCount();
+    final HashMap<String,byte[]> oValues = new HashMap<String,byte[]>(nSlots*2+1);
+    final StringBuilder oValue = new StringBuilder(64);
+    final boolean bQP = (aQPSegments!=null);
+    final QPEncoder oQP = bQP ? new QPEncoder(oOut) : null;
+    final B64Encoder oB64 = bQP ? null : new B64Encoder(oOut);
+
+    for (int s=0; s<=nSlots; s++) {
+      if (bQP)
+        writeQPLiteral(s, oQP, oOut);
+      else
+        writeB64Literal(s, oB64, oOut);
+      if (s<nSlots) {
+        final String sMarker = oTemplate.getMarker(s);
+        byte[] aValue = oValues.get(sMarker);
+        if (null==aValue) {
+          Object oResolved = oKeys.resolve(oTemplate.getKey(s));
+          if (null==oResolved) {
+            aValue = sMarker.getBytes(oCharset);
+          } else {
+            oValue.setLength(0);
+            oTemplate.getEscaping(s).append(oResolved.toString(), oValue);
+            aValue = oValue.toString().getBytes(oCharset);
+          }
+          oValues.put(sMarker, aValue);
+        }
+        if (bQP)
+          oQP.write(aValue, 0, aValue.length);
+        else
+          oB64.write(aValue, 0, aValue.length);
+      }
+    } // next
+
+    if (bQP)
+      oQP.finish();
+    else
+      oB64.finish();
+  } // render
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * <p>Render template</p>
+   * @param oResolver KeyResolver
+   * @return byte[] Transfer encoded bytes
+   */
+  public byte[] render(KeyResolver oResolver) {
+    ByteArrayOutputStream oOut = new ByteArrayOutputStream(estimateLength()+oTemplate.getSlotCount()*32);
+    try {
+      render(oResolver, oOut);
+    } catch (IOException neverthrown) { }
+    return oOut.toByteArray();
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * <p>Render template into a new text body part</p>
+   * The part has its Content-Type and Content-Transfer-Encoding headers set
+   * and its content is written as is when the message is sent.
+   * @param oResolver KeyResolver
+   * @param sSubType String "plain" or "html"
+   * @return MimeBodyPart
+   * @throws MessagingException
+   */
+  public MimeBodyPart newBodyPart(KeyResolver oResolver, String sSubType) throws MessagingException {
+    InternetHeaders oHeaders = new InternetHeaders();
+    oHeaders.setHeader("Content-Type", "text/"+sSubType+"; charset="+oCharset.name());
+    oHeaders.setHeader("Content-Transfer-Encoding", sTransferEncoding);
+    return new MimeBodyPart(oHeaders, render(oResolver));
+  }
+
+  // ---------------------------------------------------------------------------
+
+  private int estimateLength() {
+    int iLen = 0;
+    for (int s=0; s<aLiterals.length; s++)
+      iLen += aLiterals[s].length;
+    return (iLen*4)/3;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  private void writeQPLiteral(int iSegment, QPEncoder oQP, OutputStream oOut) throws IOException {
+    if (aLiterals[iSegment].length==0) return;
+    QPSegment oSeg = aQPSegments[iSegment];
+    if (oQP.bPendingCR) {
+      oOut.write(CRLF);
+      oQP.bPendingCR = false;
+      // CR at the end of the previous value and LF at the start of this segment are a single line break
+      if (aQPSegmentsNoLF[iSegment]!=null) oSeg = aQPSegmentsNoLF[iSegment];
+    } else if (oQP.iCol>0) {
+      oOut.write(SOFT_BREAK);
+    }
+    oOut.write(oSeg.aEncoded);
+    oQP.iCol = oSeg.iEndCol;
+    oQP.bPendingCR = oSeg.bEndsWithCR;
+  } // writeQPLiteral
+
+  // ---------------------------------------------------------------------------
+
+  private void writeB64Literal(int iSegment, B64Encoder oB64, OutputStream oOut) throws IOException {
+    final byte[] aLiteral = aLiterals[iSegment];
+    final B64Segment oSeg = aB64Segments[iSegment][oB64.nPending];
+    if (null==oSeg) {
+      oB64.write(aLiteral, 0, aLiteral.length);
+    } else {
+      // Complete the group left pending by the previous value
+      oB64.write(aLiteral, 0, oSeg.iHead);
+      if (oSeg.aEncoded.length>0) {
+        if (oB64.iCol>0) oOut.write(CRLF);
+        oOut.write(oSeg.aEncoded);
+        oB64.iCol = oSeg.iEndCol;
+      }
+      oB64.write(aLiteral, oSeg.iTail, aLiteral.length);
+    }
+  } // writeB64Literal
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Quoted-printable encoding of a literal segment starting at column zero
+   */
+  private static final class QPSegment {
+    final byte[] aEncoded;
+    final int iEndCol;
+    final boolean bEndsWithCR;
+
+    QPSegment(byte[] aLiteral, int iFrom) {
+      ByteArrayOutputStream oEncoded = new ByteArrayOutputStream(aLiteral.length+aLiteral.length/8+8);
+      QPEncoder oQP = new QPEncoder(oEncoded);
+      try {
+        oQP.write(aLiteral, iFrom, aLiteral.length);
+      } catch (IOException neverthrown) { }
+      aEncoded = oEncoded.toByteArray();
+      iEndCol = oQP.iCol;
+      bEndsWithCR = oQP.bPendingCR;
+    }
+  } // QPSegment
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Base64 encoding of the whole groups of a literal segment after completing
+   * the group left pending by the preceding value
+   */
+  private static final class B64Segment {
+    final int iHead, iTail;
+    final byte[] aEncoded;
+    final int iEndCol;
+
+    B64Segment(byte[] aLiteral, int nPending) {
+      iHead = (3-nPending)%3;
+      iTail = iHead+((aLiteral.length-iHead)/3)*3;
+      ByteArrayOutputStream oEncoded = new ByteArrayOutputStream(((iTail-iHead)*4)/3+8);
+      B64Encoder oB64 = new B64Encoder(oEncoded);
+      try {
+        oB64.write(aLiteral, iHead, iTail);
+      } catch (IOException neverthrown) { }
+      aEncoded = oEncoded.toByteArray();
+      iEndCol = oB64.iCol;
+    }
+  } // B64Segment
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Incremental quoted-printable encoder for text.
+   * CRLF, LF and CR alone are written as line breaks. A CR at the end of a write
+   * is kept pending until it is known whether it is followed by a LF.
+   */
+  private static final class QPEncoder {
+    final OutputStream oOut;
+    int iCol;
+    boolean bPendingCR;
+
+    QPEncoder(OutputStream oOut) {
+      this.oOut = oOut;
+      iCol = 0;
+      bPendingCR = false;
+    }
+
+    void write(byte[] aBytes, int iFrom, int iTo) throws IOException {
+      int i = iFrom;
+      if (bPendingCR && i<iTo) {
+        lineBreak();
+        bPendingCR = false;
+        if (aBytes[i]=='\n') i++;
+      }
+      for (; i<iTo; i++) {
+        final int iByte = aBytes[i] & 0xff;
+        if (iByte=='\r') {
+          if (i+1==iTo) {
+            bPendingCR = true;
+          } else {
+            if (aBytes[i+1]=='\n') i++;
+            lineBreak();
+          }
+        } else if (iByte=='\n') {
+          lineBreak();
+        } else if (iByte==' ' || iByte=='\t') {
+          // Whitespace must be encoded at the end of a line and may be at the end of this write
+          if (i+1==iTo || aBytes[i+1]=='\r' || aBytes[i+1]=='\n')
+            encoded(iByte);
+          else
+            plain(iByte);
+        } else if (iByte<32 || iByte>126 || iByte=='=') {
+          encoded(iByte);
+        } else {
+          plain(iByte);
+        }
+      } // next
+    } // write
+
+    void finish() throws IOException {
+      if (bPendingCR) {
+        lineBreak();
+        bPendingCR = false;
+      }
+    }
+
+    private void plain(int iByte) throws IOException {
+      if (iCol+1>=MAX_LINE_LENGTH) softBreak();
+      oOut.write(iByte);
+      iCol++;
+    }
+
+    private void encoded(int iByte) throws IOException {
+      if (iCol+3>=MAX_LINE_LENGTH) softBreak();
+      oOut.write('=');
+      oOut.write(HEX[iByte>>4]);
+      oOut.write(HEX[iByte & 0x0f]);
+      iCol += 3;
+    }
+
+    private void softBreak() throws IOException {
+      oOut.write(SOFT_BREAK);
+      iCol = 0;
+    }
+
+    private void lineBreak() throws IOException {
+      oOut.write(CRLF);
+      iCol = 0;
+    }
+  } // QPEncoder
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Incremental base64 encoder with lines of at most 76 characters
+   */
+  private static final class B64Encoder {
+    final OutputStream oOut;
+    final int[] aGroup = new int[3];
+    int nPending;
+    int iCol;
+
+    B64Encoder(OutputStream oOut) {
+      this.oOut = oOut;
+      nPending = 0;
+      iCol = 0;
+    }
+
+    void write(byte[] aBytes, int iFrom, int iTo) throws IOException {
+      for (int i=iFrom; i<iTo; i++) {
+        aGroup[nPending++] = aBytes[i] & 0xff;
+        if (3==nPending) {
+          group(3);
+          nPending = 0;
+        }
+      }
+    }
+
+    void finish() throws IOException {
+      if (nPending>0) {
+        for (int p=nPending; p<3; p++) aGroup[p] = 0;
+        group(nPending);
+        nPending = 0;
+      }
+    }
+
+    private void group(int nBytes) throws IOException {
+      if (iCol+4>MAX_LINE_LENGTH) {
+        oOut.write(CRLF);
+        iCol = 0;
+      }
+      final int iBits = (aGroup[0]<<16) | (aGroup[1]<<8) | aGroup[2];
+      oOut.write(BASE64_CHARS[(iBits>>18) & 0x3f]);
+      oOut.write(BASE64_CHARS[(iBits>>12) & 0x3f]);
+      oOut.write(nBytes>1 ? BASE64_CHARS[(iBits>>6) & 0x3f] : '=');
+      oOut.write(nBytes>2 ? BASE64_CHARS[iBits & 0x3f] : '=');
+      iCol += 4;
+    }
+  } // B64Encoder
+
+} // EncodedTemplate
@@ -0,0 +1,83 @@
+package com.knowgate.mail;
+
+/**
+ * © Copyright 2016 the original author.
+ * This file is licensed under the Apache License version 2.0.
+ * You may not use this file except in compliance with the license.
+ * You may obtain a copy of the License at:
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.
+ */
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import javax.activation.DataSource;
+
+/**
+ * <p>DataSource that streams a file from disk</p>
+ * Unlike ByteArrayDataSource the file contents are never loaded as a whole
+ * onto the heap. Each call to getInputStream() opens a new FileChannel and
+ * JavaMail encodes the data while copying it into the SMTP output stream.
+ * @author Sergio Montoro Ten
+ * @version 9.1
+ */
+public class FileChannelDataSource implements DataSource {
+
+  private final File oFile;
+  private final String sContentType;
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * @param oFile File
+   * @param sContentType String Content type, for example "application/octet-stream"
+   */
+  public FileChannelDataSource(File oFile, String sContentType) {
+    if (null==oFile) throw new NullPointerException("FileChannelDataSource File may not be null");
+    this.oFile = oFile;
+    this.sContentType = sContentType;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * A new stream is returned each time
+   * @return InputStream
+   * @throws FileNotFoundException
+   * @throws IOException
+   */
+  public InputStream getInputStream() throws FileNotFoundException, IOException {
+    if (!oFile.exists()) throw new FileNotFoundException(oFile.getPath());
+    return Channels.newInputStream(FileChannel.open(oFile.toPath(), StandardOpenOption.READ));
+  }
+
+  // ---------------------------------------------------------------------------
+
+  public OutputStream getOutputStream() throws IOException {
+    throw new IOException("FileChannelDataSource is read only");
+  }
+
+  // ---------------------------------------------------------------------------
+
+  public String getContentType() {
+    return sContentType;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  public String getName() {
+    return oFile.getName();
+  }
+
+} // FileChannelDataSource
@@ -18,15 +18,19 @@ import java.util.Map;
 import java.util.HashMap;
 import java.util.Properties;
 import java.util.Iterator;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.URL;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
 import java.security.Security;
 
@@ -55,6 +59,9 @@ import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 import javax.mail.internet.ParseException;
 import javax.mail.internet.InternetAddress;
+import javax.mail.internet.SharedInputStream;
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.mail.util.SharedFileInputStream;
 
 import org.htmlparser.Parser;
 import org.htmlparser.beans.StringBean;
@@ -71,6 +78,9 @@ import com.knowgate.debug.DebugFile;
 import com.knowgate.debug.StackTraceUtil;
 import com.knowgate.stringutils.Str;
 import com.knowgate.xhtml.FastStreamReplacer;
+import com.knowgate.xhtml.KeyResolver;
+import com.knowgate.xhtml.MergeTemplate;
+import com.knowgate.xhtml.MultiLiteralReplacer;
 
 /**
  * <p>A wrapper around javax.mail.Store and javax.mail.Transport</p>
@@ -97,6 +107,30 @@ public class MailSessionHandler {
   protected boolean bIsTransportConnected;
   protected boolean bIncomingSSL;
   protected boolean bOutgoingSSL;
+  protected boolean bReuseTransport;
+  protected boolean bBulkReuseTransport;
+  protected boolean bPooledTransport;
+  protected int iCampaignConnections;
+  protected AttachmentPartCache oAttachmentCache;
+  protected int iMaxMessagesPerConnection;
+  protected int iMessagesSentByTransport;
+  protected long lValidateTransportAfter;
+  protected long lTransportLastUsed;
+
+  /**
+   * Default maximum number of messages sent through the same SMTP connection before it is recycled
+   */
+  public static final int DEFAULT_MAX_MESSAGES_PER_CONNECTION = 100;
+
+  /**
+   * Default milliseconds that a reused connection may be idle before it is checked with NOOP
+   */
+  public static final long DEFAULT_VALIDATE_TRANSPORT_AFTER = 5000l;
+
+  /**
+   * Bulk master messages with attachments larger than this are spooled to a temporary file
+   */
+  protected static final long MAX_IN_MEMORY_MASTER_SIZE = 1048576l;
 
   // ---------------------------------------------------------------------------
 
@@ -112,6 +146,15 @@ public class MailSessionHandler {
     iOutPortNum = 25;
     oMailSession = null;
     bOutgoingSSL = bIncomingSSL=false;
+    bReuseTransport = false;
+    bBulkReuseTransport = true;
+    bPooledTransport = false;
+    iCampaignConnections = 1;
+    oAttachmentCache = AttachmentPartCache.getDefault();
+    iMaxMessagesPerConnection = DEFAULT_MAX_MESSAGES_PER_CONNECTION;
+    iMessagesSentByTransport = 0;
+    lValidateTransportAfter = DEFAULT_VALIDATE_TRANSPORT_AFTER;
+    lTransportLastUsed = 0l;
   }
 
   /**
@@ -133,7 +176,13 @@ public class MailSessionHandler {
    *        <tr><td>socksProxyHost</td><td>Proxy IP address</td><td></td></tr>
    *        <tr><td>socksProxyPort</td><td>Proxy Port</td><td></td></tr>
    *        <tr><td>mail.smtp.debug</td><td>JavaMail Debug Mode</td><td>true or false (default)</td></tr>
+   *        <tr><td>mail.<i>transportprotocol</i>.reuseconnection</td><td>Send every message through the same connected Transport</td><td>true or false (default)</td></tr>
+   *        <tr><td>mail.<i>transportprotocol</i>.maxmessagesperconnection</td><td>Messages sent before a reused connection is recycled, zero for no limit</td><td>100</td></tr>
+   *        <tr><td>mail.<i>transportprotocol</i>.validateafter</td><td>Milliseconds idle after which a reused connection is checked with NOOP before sending</td><td>5000</td></tr>
+   *        <tr><td>mail.<i>transportprotocol</i>.pool</td><td>Borrow connections from the SmtpTransportPool shared by all handlers of the same account</td><td>true or false (default)</td></tr>
+   *        <tr><td>mail.<i>transportprotocol</i>.campaignconnections</td><td>Concurrent connections used by bulk sendMessage</td><td>1</td></tr>
    * </table>
+   * See SmtpTransportPool for the connection pool settings.
    * @throws NullPointerException if oMailProperties is null
    * @since 3.1
    */
@@ -164,6 +213,15 @@ public class MailSessionHandler {
     if (sOutAuthStr!=null) {
       oProps.put("mail."+sTransportProtocol+".auth", "true");
     }
+    bReuseTransport = oProps.getOrDefault("mail."+sTransportProtocol+".reuseconnection", "false").equalsIgnoreCase("true");
+    bBulkReuseTransport = true;
+    bPooledTransport = oProps.getOrDefault("mail."+sTransportProtocol+".pool", "false").equalsIgnoreCase("true");
+    iCampaignConnections = Integer.parseInt(oProps.getOrDefault("mail."+sTransportProtocol+".campaignconnections", "1"));
+    oAttachmentCache = AttachmentPartCache.getDefault();
+    iMaxMessagesPerConnection = Integer.parseInt(oProps.getOrDefault("mail."+sTransportProtocol+".maxmessagesperconnection", String.valueOf(DEFAULT_MAX_MESSAGES_PER_CONNECTION)));
+    iMessagesSentByTransport = 0;
+    lValidateTransportAfter = Long.parseLong(oProps.getOrDefault("mail."+sTransportProtocol+".validateafter", String.valueOf(DEFAULT_VALIDATE_TRANSPORT_AFTER)));
+    lTransportLastUsed = 0l;
     if (bOutgoingSSL) {
         oProps.put("mail."+sTransportProtocol+".socketFactory.port", String.valueOf(iOutPortNum));
         oProps.put("mail."+sTransportProtocol+".socketFactory.fallback", "false");	
@@ -261,6 +319,167 @@ public class MailSessionHandler {
 
   // ---------------------------------------------------------------------------
 
+  /**
+   * Get whether sendMessage(Message) and sendMessage(Message, Address[]) reuse a connected Transport
+   * @return boolean
+   * @since 9.1
+   */
+  public boolean getReuseTransport() {
+    return bReuseTransport;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * <p>Set whether sendMessage(Message) and sendMessage(Message, Address[]) reuse a connected Transport</p>
+   * If <b>false</b> (the default) each message is sent by calling Transport.send() which opens,
+   * authenticates and closes a new connection for every message.<br>
+   * If <b>true</b> every message is sent through the Transport returned by getTransport().
+   * The connection is transparently re-established if the server drops it and it is
+   * recycled after getMaxMessagesPerConnection() messages.
+   * @param bReuse boolean
+   * @since 9.1
+   */
+  public void setReuseTransport(boolean bReuse) {
+    bReuseTransport = bReuse;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Get whether bulk sendMessage(String sSubject, ...) methods reuse a connected Transport
+   * @return boolean
+   * @since 9.1
+   */
+  public boolean getBulkReuseTransport() {
+    return bBulkReuseTransport;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Set whether bulk sendMessage(String sSubject, ...) methods reuse a connected Transport
+   * @param bReuse boolean Default is <b>true</b>
+   * @since 9.1
+   */
+  public void setBulkReuseTransport(boolean bReuse) {
+    bBulkReuseTransport = bReuse;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Get maximum number of messages sent through a reused connection before it is recycled
+   * @return int Zero means no limit
+   * @since 9.1
+   */
+  public int getMaxMessagesPerConnection() {
+    return iMaxMessagesPerConnection;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Set maximum number of messages sent through a reused connection before it is recycled
+   * @param iMaxMessages int Zero means no limit
+   * @throws IllegalArgumentException if iMaxMessages is negative
+   * @since 9.1
+   */
+  public void setMaxMessagesPerConnection(int iMaxMessages) throws IllegalArgumentException {
+    if (iMaxMessages<0) throw new IllegalArgumentException("SessionHandler.setMaxMessagesPerConnection() value may not be negative");
+    iMaxMessagesPerConnection = iMaxMessages;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Get whether connections are borrowed from the SmtpTransportPool shared by handlers of the same account
+   * @return boolean
+   * @since 9.1
+   */
+  public boolean getPooledTransport() {
+    return bPooledTransport;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * <p>Set whether connections are borrowed from the SmtpTransportPool shared by handlers of the same account</p>
+   * If <b>true</b> every message is sent through a connected Transport borrowed from
+   * the pool returned by getTransportPool() and given back after the message is sent,
+   * instead of using a Transport owned by this handler.
+   * @param bPooled boolean
+   * @since 9.1
+   */
+  public void setPooledTransport(boolean bPooled) {
+    bPooledTransport = bPooled;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Get the pool of connections shared by every handler with the same outgoing host, port, account, password, SSL mode and properties
+   * @return SmtpTransportPool
+   * @throws IllegalStateException if properties are not set
+   * @since 9.1
+   */
+  public SmtpTransportPool getTransportPool() throws IllegalStateException {
+    return SmtpTransportPool.getPool(getSmtpSession(), sOutHostName, iOutPortNum, sOutAccountName, sOutAuthStr, bOutgoingSSL);
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Get number of concurrent connections used by bulk sendMessage(String sSubject, ...) methods
+   * @return int
+   * @since 9.1
+   */
+  public int getCampaignConnections() {
+    return iCampaignConnections;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * <p>Set number of concurrent connections used by bulk sendMessage(String sSubject, ...) methods</p>
+   * If greater than one, recipients are spread across that many worker threads by a
+   * CampaignDispatcher, each of them sending through its own connection.
+   * If pooled transport is enabled the connections are borrowed from the shared pool,
+   * so the effective concurrency is also bounded by the pool maximum size.
+   * @param nConnections int Default is 1
+   * @throws IllegalArgumentException if nConnections is less than 1
+   * @since 9.1
+   */
+  public void setCampaignConnections(int nConnections) throws IllegalArgumentException {
+    if (nConnections<1) throw new IllegalArgumentException("SessionHandler.setCampaignConnections() number of connections must be at least 1");
+    iCampaignConnections = nConnections;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Get cache of encoded attachments used when composing messages
+   * @return AttachmentPartCache or <b>null</b> if attachments are not cached
+   * @since 9.1
+   */
+  public AttachmentPartCache getAttachmentCache() {
+    return oAttachmentCache;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * <p>Set cache of encoded attachments used when composing messages</p>
+   * By default all handlers share AttachmentPartCache.getDefault()
+   * @param oCache AttachmentPartCache or <b>null</b> for not caching attachments
+   * @since 9.1
+   */
+  public void setAttachmentCache(AttachmentPartCache oCache) {
+    oAttachmentCache = oCache;
+  }
+
+  // ---------------------------------------------------------------------------
+
   /**
    * <p>Get incoming mail server Session</p>
    * This method calls JavaMail Session.getInstance() method if neccesary,
@@ -395,6 +614,9 @@ public class MailSessionHandler {
       if (DebugFile.trace) DebugFile.writeln("Session.getTransport()");
       oMailTransport = getSmtpSession().getTransport();
       oMailTransport.connect();
+      bIsTransportConnected = true;
+      iMessagesSentByTransport = 0;
+      lTransportLastUsed = System.currentTimeMillis();
     }
     if (DebugFile.trace) {
       DebugFile.decIdent();
@@ -446,7 +668,10 @@ public class MailSessionHandler {
     
     oMsg.setSentDate(new java.util.Date());
     
-    Transport.send(oMsg);
+    if (bReuseTransport || bPooledTransport)
+      sendThroughTransport(oMsg, oMsg.getAllRecipients());
+    else
+      Transport.send(oMsg);
     
     if (DebugFile.trace) {
       DebugFile.decIdent();
@@ -764,8 +989,12 @@ public class MailSessionHandler {
       DebugFile.incIdent();
     }
     oMsg.setSentDate(new java.util.Date());
-    if (DebugFile.trace) DebugFile.writeln("Transport.send(Message,Address[])");
-    Transport.send(oMsg,aAddrs);
+    if (bReuseTransport || bPooledTransport) {
+      sendThroughTransport(oMsg, aAddrs);
+    } else {
+      if (DebugFile.trace) DebugFile.writeln("Transport.send(Message,Address[])");
+      Transport.send(oMsg,aAddrs);
+    }
     if (DebugFile.trace) {
       DebugFile.decIdent();
       DebugFile.writeln("End SessionHandler.sendMessage()");
@@ -832,6 +1061,7 @@ public class MailSessionHandler {
         oMailTransport.close();
       }
       oMailTransport=null;
+      bIsTransportConnected=false;
     }
     oMailSession=null;
     oSmtpSession=null;
@@ -841,6 +1071,90 @@ public class MailSessionHandler {
     }
   } // close
 
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Close the reused Transport ignoring any error, the next call to getTransport() will open a new connection
+   */
+  private void releaseTransport() {
+    if (null!=oMailTransport) {
+      if (DebugFile.trace) DebugFile.writeln("Transport.close()");
+      try {
+        oMailTransport.close();
+      } catch (MessagingException ignore) { }
+      oMailTransport = null;
+    }
+    bIsTransportConnected = false;
+    iMessagesSentByTransport = 0;
+  } // releaseTransport
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * <p>Send a message through the connected Transport returned by getTransport()</p>
+   * A connection idle for longer than lValidateTransportAfter is checked with NOOP
+   * and replaced by a new one if the server has closed it. If sending fails the
+   * connection is discarded but the message is not sent again, because the server
+   * may have accepted it before failing. The only exception is a Transport found
+   * not connected, which fails before sending any command.
+   * The connection is recycled after iMaxMessagesPerConnection messages.
+   * If bPooledTransport is <b>true</b> the message is sent through a connection
+   * borrowed from the shared SmtpTransportPool instead.
+   */
+  private void sendThroughTransport(Message oMsg, Address[] aAddrs)
+    throws NoSuchProviderException,SendFailedException,MessagingException {
+
+    if (null==aAddrs || aAddrs.length==0)
+      throw new SendFailedException("No recipient addresses");
+
+    oMsg.saveChanges();
+
+    if (bPooledTransport) {
+      if (DebugFile.trace) DebugFile.writeln("SmtpTransportPool.send(Message,Address[])");
+      getTransportPool().send(oMsg, aAddrs);
+      return;
+    }
+
+    Transport oTrnsprt = getTransport();
+    if (System.currentTimeMillis()-lTransportLastUsed>lValidateTransportAfter && !oTrnsprt.isConnected()) {
+      if (DebugFile.trace) DebugFile.writeln("Transport.isConnected() false, reconnecting transport");
+      releaseTransport();
+      oTrnsprt = getTransport();
+    }
+
+    boolean bRetry = false;
+    try {
+      if (DebugFile.trace) DebugFile.writeln("Transport.sendMessage(Message,Address[])");
+      oTrnsprt.sendMessage(oMsg, aAddrs);
+    } catch (SendFailedException sfe) {
+      throw sfe;
+    } catch (MessagingException xcpt) {
+      if (DebugFile.trace) DebugFile.writeln("MessagingException "+xcpt.getMessage()+" closing transport");
+      releaseTransport();
+      throw xcpt;
+    } catch (IllegalStateException xcpt) {
+      if (DebugFile.trace) DebugFile.writeln("IllegalStateException "+xcpt.getMessage()+" reconnecting transport");
+      bRetry = true;
+    }
+
+    if (bRetry) {
+      releaseTransport();
+      try {
+        getTransport().sendMessage(oMsg, aAddrs);
+      } catch (SendFailedException sfe) {
+        throw sfe;
+      } catch (MessagingException xcpt) {
+        releaseTransport();
+        throw xcpt;
+      }
+    }
+
+    lTransportLastUsed = System.currentTimeMillis();
+
+    if (iMaxMessagesPerConnection>0 && ++iMessagesSentByTransport>=iMaxMessagesPerConnection)
+      releaseTransport();
+  } // sendThroughTransport
+
   // ---------------------------------------------------------------------------
   
   private SMTPMessage composeMessage(String sSubject, String sEncoding,
@@ -859,24 +1173,52 @@ public class MailSessionHandler {
   if (sEncoding==null) sEncoding = "ASCII";
   String sCharEnc = Charset.forName(sEncoding).name();
 
-  Session oSes = getSmtpSession();
-  
-  if (DebugFile.trace) DebugFile.writeln("new SMTPMessage(Session)");
-  
-  SMTPMessage oSentMessage = new SMTPMessage(oSes);
-
-  MimeBodyPart oMsgPlainText = new MimeBodyPart();
-  MimeMultipart oSentMsgParts = new MimeMultipart("mixed");
+  HashMap<String,String> oDocumentImages = new HashMap<String,String>(23);
+  MimeBodyPart oMsgPlainText = null;
+  MimeBodyPart oMsgHtml = null;
 
   if (sContentType.equalsIgnoreCase("html")) {
+    String[] aBodies = prepareHtmlBody(sTextBody, sHtmlBody, sEncoding, bInlineImages, oDocumentImages);
+    sTextBody = aBodies[0];
+    sHtmlBody = aBodies[1];
+    oMsgPlainText = new MimeBodyPart();
+    oMsgPlainText.setText(sTextBody, sCharEnc, "plain");
+    oMsgHtml = new MimeBodyPart();
+    oMsgHtml.setText(sHtmlBody, sCharEnc, "html");
+  }
 
-    MimeMultipart oHtmlRelated  = new MimeMultipart("related");
-    MimeMultipart oTextHtmlAlt  = new MimeMultipart("alternative");
+  SMTPMessage oSentMessage = assembleMessage(sSubject, sCharEnc, sTextBody, oMsgPlainText, oMsgHtml,
+                                             oDocumentImages, sId, aAttachmentsPath, sBasePath);
+
+  if (DebugFile.trace) {
+    DebugFile.decIdent();
+    DebugFile.writeln("End SessionHandler.composeMessage()");
+  }
+
+  return oSentMessage;
+  } // composeMessage
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * <p>Get plain text alternative and replace inline images sources by CIDs</p>
+   * @param sTextBody String Plain text alternative, if <b>null</b> it is extracted from sHtmlBody
+   * @param sHtmlBody String HTML body
+   * @param sEncoding String Character encoding
+   * @param bInlineImages boolean Whether images must be embedded into the message
+   * @param oDocumentImages HashMap Output map from each image source to its CID.
+   * Images whose source contains a {#<i>key</i>} marker are not embedded.
+   * @return String[] {Plain text body, HTML body with image sources replaced by CIDs}
+   * @throws MessagingException
+   */
+  private static String[] prepareHtmlBody(String sTextBody, String sHtmlBody, String sEncoding,
+                                          boolean bInlineImages, HashMap<String,String> oDocumentImages)
+    throws MessagingException {
 
     // ************************************************************************
     // Replace image CIDs
 
-    HashMap<String,String> oDocumentImages = new HashMap<String,String>(23);
+    HashMap<String,String> oImageCids = new HashMap<String,String>(23);
 
     Parser oPrsr = Parser.createParser(sHtmlBody, sEncoding);
 
@@ -902,14 +1244,6 @@ public class MailSessionHandler {
           oStrBn = null;
       } // fi (sTextBody==null)
 
-      // *******************************
-      // Set plain text alternative part
-
-      oMsgPlainText.setDisposition("inline");
-      oMsgPlainText.setText(sTextBody, sCharEnc, "plain");
-      if (DebugFile.trace) DebugFile.writeln("MimeBodyPart(multipart/alternative).addBodyPart(text/plain)");
-      oTextHtmlAlt.addBodyPart(oMsgPlainText);
-
       // *****************************************
       // Iterate images from HTML and replace CIDs
 
@@ -927,6 +1261,9 @@ public class MailSessionHandler {
 
           sSrc = ((ImageTag) oCollectionList.elementAt(i)).extractImageLocn();
 
+          // Sources personalized for each recipient, like tracking images, are left as links
+          if (sSrc.indexOf("{#")>=0) continue;
+
           // Keep a reference to every related image name so that the same image is not included twice in the message
           if (!oDocumentImages.containsKey(sSrc)) {
 
@@ -945,12 +1282,16 @@ public class MailSessionHandler {
             if (DebugFile.trace) DebugFile.writeln("HashMap.put("+sSrc+","+sCid+")");
 
             oDocumentImages.put(sSrc, sCid);
+            oImageCids.put(sSrc, "cid:"+sCid);
           } // fi (!oDocumentImages.containsKey(sSrc))
 
-          if (DebugFile.trace) DebugFile.writeln("Util.substitute([PatternMatcher],"+ sSrc + ",cid:"+oDocumentImages.get(sSrc)+",...)");
-          sHtmlBody = sHtmlBody.replaceAll(sSrc, "cid:"+oDocumentImages.get(sSrc));
+        } // next
 
-        } // next      	
+        // Replace all image sources by their CIDs in a single pass
+        if (!oImageCids.isEmpty()) {
+          if (DebugFile.trace) DebugFile.writeln("MultiLiteralReplacer.replace("+String.valueOf(oImageCids.size())+" image sources)");
+          sHtmlBody = new MultiLiteralReplacer(oImageCids).replace(sHtmlBody);
+        }
       } // fi (bInlineImages)
     }
     catch (ParserException pe) {
@@ -961,26 +1302,68 @@ public class MailSessionHandler {
     // End replace image CIDs
     // ************************************************************************
 
+    return new String[]{sTextBody, sHtmlBody};
+  } // prepareHtmlBody
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * <p>Build message from its already composed text parts</p>
+   * @param sSubject String
+   * @param sCharEnc String Java character set name
+   * @param sTextBody String Plain text body, used only for plain text messages without attachments
+   * @param oMsgPlainText MimeBodyPart Plain text part. May be <b>null</b> for plain text messages without attachments.
+   * @param oMsgHtml MimeBodyPart HTML part or <b>null</b> for plain text messages
+   * @param oDocumentImages HashMap From each inline image source to its CID
+   * @param sId String Message Id
+   * @param aAttachmentsPath String[] Attachment file paths
+   * @param sBasePath String Base path for attachments and inline images
+   * @return SMTPMessage
+   */
+  private SMTPMessage assembleMessage(String sSubject, String sCharEnc, String sTextBody,
+                                      MimeBodyPart oMsgPlainText, MimeBodyPart oMsgHtml,
+                                      HashMap<String,String> oDocumentImages, String sId,
+                                      String [] aAttachmentsPath, String sBasePath)
+    throws IOException,MessagingException {
+
+  Session oSes = getSmtpSession();
+  
+  if (DebugFile.trace) DebugFile.writeln("new SMTPMessage(Session)");
+  
+  SMTPMessage oSentMessage = new SMTPMessage(oSes);
+
+  MimeMultipart oSentMsgParts = new MimeMultipart("mixed");
+
+  String sCid, sSrc;
+
+  if (oMsgHtml!=null) {
+
+    MimeMultipart oHtmlRelated  = new MimeMultipart("related");
+    MimeMultipart oTextHtmlAlt  = new MimeMultipart("alternative");
+
+    // *******************************
+    // Set plain text alternative part
+
+    oMsgPlainText.setDisposition("inline");
+    if (DebugFile.trace) DebugFile.writeln("MimeBodyPart(multipart/alternative).addBodyPart(text/plain)");
+    oTextHtmlAlt.addBodyPart(oMsgPlainText);
+
     // ************************************************************************
     // Add HTML related images
 
     if (oDocumentImages.isEmpty()) {
       
     	// Set HTML part
-      MimeBodyPart oMsgHtml = new MimeBodyPart();
       oMsgHtml.setDisposition("inline");
-      oMsgHtml.setText(sHtmlBody, sCharEnc, "html");
       oTextHtmlAlt.addBodyPart(oMsgHtml);
 
     } else {
 
       // Set HTML text related part
 
-      MimeBodyPart oMsgHtmlText = new MimeBodyPart();
-      oMsgHtmlText.setDisposition("inline");
-      oMsgHtmlText.setText(sHtmlBody, sCharEnc, "html");
+      oMsgHtml.setDisposition("inline");
       if (DebugFile.trace) DebugFile.writeln("MimeBodyPart(multipart/related).addBodyPart(text/html)");
-      oHtmlRelated.addBodyPart(oMsgHtmlText);
+      oHtmlRelated.addBodyPart(oMsgHtml);
 
       // Set HTML text related inline images
 
@@ -1029,7 +1412,7 @@ public class MailSessionHandler {
       oSentMsgParts.addBodyPart(oMixedPart);
     }
 
-  } else { // (sContentType=="plain")
+  } else { // (oMsgHtml==null)
 
     // *************************************************
     // If this is a plain text message just add the text
@@ -1037,14 +1420,17 @@ public class MailSessionHandler {
     if (aAttachmentsPath==null) {
       oSentMessage.setText(sTextBody, sCharEnc);
     } else {
+      if (null==oMsgPlainText) {
+        oMsgPlainText = new MimeBodyPart();
+        oMsgPlainText.setText(sTextBody, sCharEnc, "plain");
+      }
       oMsgPlainText.setDisposition("inline");
-      oMsgPlainText.setText(sTextBody, sCharEnc, "plain");
       //oMsgPlainText.setContent(sTextBody, "text/plain; charset="+sCharEnc);
       if (DebugFile.trace) DebugFile.writeln("MimeBodyPart(multipart/mixed).addBodyPart(text/plain)");
       oSentMsgParts.addBodyPart(oMsgPlainText);
     }
   }
-  // fi (sContentType=="html")
+  // fi (oMsgHtml!=null)
 
   // ************************************************************************
   // Add attachments to message to be sent
@@ -1053,21 +1439,21 @@ public class MailSessionHandler {
     final int nAttachments = aAttachmentsPath.length;
 
     for (int p=0; p<nAttachments; p++) {
-      String sFilePath = aAttachmentsPath[p];
-      if (sBasePath!=null) {
-        if (!sFilePath.startsWith(sBasePath))
-          sFilePath = sBasePath + sFilePath;
-      }
-      File oFile = new File(sFilePath);
+      File oFile = getAttachmentFile(aAttachmentsPath[p], sBasePath);
       
-      MimeBodyPart oAttachment = new MimeBodyPart();
+      MimeBodyPart oAttachment = null;
+      if (null!=oAttachmentCache)
+        oAttachment = oAttachmentCache.getBodyPart(oFile, "application/octet-stream");
+
+      if (null==oAttachment) {
+        // Too large for being cached, stream it from disk each time that the message is written
+        if (!oFile.exists()) throw new FileNotFoundException(oFile.getPath());
+        oAttachment = new MimeBodyPart();
+        oAttachment.setHeader("Content-Transfer-Encoding", "base64");
+        oAttachment.setDataHandler(new DataHandler(new FileChannelDataSource(oFile, "application/octet-stream")));
+      }
       oAttachment.setDisposition("attachment");
       oAttachment.setFileName(oFile.getName());
-      oAttachment.setHeader("Content-Transfer-Encoding", "base64");
-
-      ByteArrayDataSource oDataSrc;
-      oDataSrc = new ByteArrayDataSource(Files.readAllBytes(Paths.get(sFilePath)), "application/octet-stream");
-      oAttachment.setDataHandler(new DataHandler(oDataSrc));
       oSentMsgParts.addBodyPart(oAttachment);
     } // next
     oSentMessage.setContent(oSentMsgParts);
@@ -1079,16 +1465,238 @@ public class MailSessionHandler {
     if (sId.trim().length()>0)
       oSentMessage.setContentID(sId);
 
-  if (DebugFile.trace) {
-    DebugFile.decIdent();
-    DebugFile.writeln("End SessionHandler.composeMessage()");
-  }
-
   return oSentMessage;
-  } // composeMessage
+  } // assembleMessage
      
   // ---------------------------------------------------------------------------
 
+  private static File getAttachmentFile(String sFilePath, String sBasePath) {
+    if (sBasePath!=null) {
+      if (!sFilePath.startsWith(sBasePath))
+        sFilePath = sBasePath + sFilePath;
+    }
+    return new File(sFilePath);
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Send one message of a bulk delivery reusing the connected Transport if bBulkReuseTransport is <b>true</b>
+   */
+  private void sendBulkMessage(Message oMsg)
+    throws NoSuchProviderException,SendFailedException,MessagingException {
+    if (bBulkReuseTransport || bPooledTransport) {
+      oMsg.setSentDate(new java.util.Date());
+      sendThroughTransport(oMsg, oMsg.getAllRecipients());
+    } else {
+      sendMessage(oMsg);
+    }
+  } // sendBulkMessage
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Send a bulk delivery through iCampaignConnections concurrent connections
+   * taken from the shared SmtpTransportPool if bPooledTransport is <b>true</b>
+   * or else from a pool created just for this delivery.
+   * @return int Count of messages successfully sent
+   */
+  private int dispatchCampaign(String[] aRecipientsAddrs, CampaignDispatcher.MessageFactory oFactory, PrintStream oOut)
+    throws MessagingException {
+    SmtpTransportPool oPool;
+    if (bPooledTransport)
+      oPool = getTransportPool();
+    else
+      oPool = new SmtpTransportPool(getSmtpSession(), sOutAccountName+"@"+sOutHostName+":"+String.valueOf(iOutPortNum),
+                                    0, iCampaignConnections, 60000l, 60000l, iMaxMessagesPerConnection);
+    try {
+      CampaignDispatcher oDispatcher = new CampaignDispatcher(oPool, iCampaignConnections);
+      return CampaignDispatcher.countSent(oDispatcher.dispatch(aRecipientsAddrs, oFactory, oOut));
+    } catch (InterruptedException xcpt) {
+      Thread.currentThread().interrupt();
+      throw new MessagingException("SessionHandler.sendMessage() interrupted", xcpt);
+    } finally {
+      if (!bPooledTransport) oPool.close();
+    }
+  } // dispatchCampaign
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Copy of a bulk master message parsed from its bytes.
+   * saveChanges() only sets a new Message-ID and Date. The parsed message is not
+   * marked as modified, so writeTo() writes the headers followed by the shared body
+   * bytes as they are, instead of parsing and encoding the whole multipart again.
+   * Headers must be changed directly, changes to the content are not saved.
+   */
+  private static final class MasterCopyMessage extends SMTPMessage {
+
+    MasterCopyMessage(Session oSes, InputStream oMaster) throws MessagingException {
+      super(oSes, oMaster);
+    }
+
+    @Override
+    public void saveChanges() throws MessagingException {
+      updateMessageID();
+      setSentDate(new java.util.Date());
+      saved = true;
+    }
+  } // MasterCopyMessage
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Compose the message for each recipient of a bulk delivery.
+   * This class is thread safe so it can be used from the CampaignDispatcher workers.
+   */
+  private class RecipientMessageFactory implements CampaignDispatcher.MessageFactory {
+    private final String sSubject, sFromPersonal, sFromAddr, sReplyAddr, sTextBody, sHtmlBody, sEncoding, sId, sUserDir;
+    private final String[] aRecipientsAddrs, aAttachmentsPath;
+    private final RecipientType[] aRecType;
+    private final boolean bInlineImages, bHasReplacements;
+    private final Session oSes;
+    private final String sCharEnc;
+    private final MergeTemplate oPlainTemplate;
+    private final EncodedTemplate oTextTemplate, oHtmlTemplate;
+    private final HashMap<String,String> oDocumentImages;
+    private final SharedInputStream oMasterMsg;
+    private final File oMasterFile;
+
+    /**
+     * If there are no per recipient replacements then the master message is composed
+     * and serialized once here, with its attachments already encoded, and every
+     * recipient message is parsed from the same shared bytes.
+     * If the attachments are larger than MAX_IN_MEMORY_MASTER_SIZE the master
+     * message is spooled to a temporary file instead of being kept on the heap.
+     */
+    RecipientMessageFactory(String sSubject, String sFromPersonal, String sFromAddr, String sReplyAddr,
+                            String[] aRecipientsAddrs, RecipientType[] aRecType,
+                            String sTextBody, String sHtmlBody, String sEncoding, String sId,
+                            String [] aAttachmentsPath, String sUserDir, boolean bInlineImages, boolean bHasReplacements)
+      throws IOException,MessagingException,IllegalArgumentException,SecurityException {
+      this.sSubject = sSubject;
+      this.sFromPersonal = sFromPersonal;
+      this.sFromAddr = sFromAddr;
+      this.sReplyAddr = sReplyAddr;
+      this.aRecipientsAddrs = aRecipientsAddrs;
+      this.aRecType = aRecType;
+      this.sTextBody = sTextBody;
+      this.sHtmlBody = sHtmlBody;
+      this.sEncoding = sEncoding;
+      this.sId = sId;
+      this.aAttachmentsPath = aAttachmentsPath;
+      this.sUserDir = sUserDir;
+      this.bInlineImages = bInlineImages;
+      this.bHasReplacements = bHasReplacements;
+      this.oSes = getSmtpSession();
+      if (bHasReplacements) {
+        // Plain text extraction and inline images are resolved once here,
+        // and the literal text of the bodies is encoded once for all recipients
+        final Charset oCharset = Charset.forName(null==sEncoding ? "ASCII" : sEncoding);
+        sCharEnc = oCharset.name();
+        oDocumentImages = new HashMap<String,String>(23);
+        if (null!=sHtmlBody) {
+          String[] aBodies = prepareHtmlBody(sTextBody, sHtmlBody, null==sEncoding ? "ASCII" : sEncoding, bInlineImages, oDocumentImages);
+          oPlainTemplate = null;
+          oTextTemplate = new EncodedTemplate(MergeTemplate.compile(aBodies[0]), oCharset);
+          oHtmlTemplate = new EncodedTemplate(MergeTemplate.compile(aBodies[1]), oCharset);
+        } else {
+          oPlainTemplate = MergeTemplate.compile(sTextBody);
+          oTextTemplate = null==aAttachmentsPath ? null : new EncodedTemplate(oPlainTemplate, oCharset);
+          oHtmlTemplate = null;
+        }
+        oMasterMsg = null;
+        oMasterFile = null;
+      } else {
+        sCharEnc = null;
+        oPlainTemplate = null;
+        oTextTemplate = oHtmlTemplate = null;
+        oDocumentImages = null;
+        MimeMessage oMsg = composeMessage(sSubject, sEncoding, sTextBody, sHtmlBody, null, aAttachmentsPath, sUserDir, bInlineImages);
+        oMsg.setFrom(new InternetAddress(sFromAddr, null==sFromPersonal ? sFromAddr : sFromPersonal));
+        if (null!=sReplyAddr) oMsg.setReplyTo(new Address[]{new InternetAddress(sReplyAddr)});
+        oMsg.saveChanges();
+        long lAttachmentsSize = 0l;
+        if (aAttachmentsPath!=null)
+          for (int a=0; a<aAttachmentsPath.length; a++)
+            lAttachmentsSize += getAttachmentFile(aAttachmentsPath[a], sUserDir).length();
+        if (lAttachmentsSize>MAX_IN_MEMORY_MASTER_SIZE) {
+          final File oSpool = File.createTempFile("mailmaster", ".eml");
+          boolean bSpooled = false;
+          try {
+            OutputStream oMasterOut = new BufferedOutputStream(new FileOutputStream(oSpool));
+            try {
+              oMsg.writeTo(oMasterOut);
+            } finally {
+              oMasterOut.close();
+            }
+            oMasterMsg = new SharedFileInputStream(oSpool);
+            bSpooled = true;
+          } finally {
+            // close() will not be called if the constructor fails
+            if (!bSpooled) oSpool.delete();
+          }
+          oMasterFile = oSpool;
+          if (DebugFile.trace) DebugFile.writeln("master message spooled to "+oMasterFile.getPath()+" "+String.valueOf(oMasterFile.length())+" bytes");
+        } else {
+          ByteArrayOutputStream oMasterBytes = new ByteArrayOutputStream();
+          oMsg.writeTo(oMasterBytes);
+          oMasterMsg = new SharedByteArrayInputStream(oMasterBytes.toByteArray());
+          oMasterFile = null;
+          if (DebugFile.trace) DebugFile.writeln("master message composed "+String.valueOf(oMasterBytes.size())+" bytes");
+        }
+      }
+    }
+
+    /**
+     * Release the master message temporary file, if any
+     */
+    void close() {
+      if (oMasterFile!=null) {
+        try {
+          ((InputStream) oMasterMsg).close();
+        } catch (IOException ignore) { }
+        oMasterFile.delete();
+      }
+    }
+
+    public MimeMessage newMessage(int r) throws Exception {
+      final String sRecipientAddr = aRecipientsAddrs[r];
+      if (sRecipientAddr.length()==0) return null;
+      MimeMessage oCurrentMsg;
+      if (bHasReplacements) {
+        final String sUniqueId = sId+"."+String.valueOf(r+1);
+        KeyResolver oResolver = new KeyResolver() {
+          public Object resolve(String sKey) {
+            return sKey.equals("Message.id") ? sUniqueId : null;
+          }
+        };
+        oCurrentMsg = assembleMessage(sSubject, sCharEnc,
+                                      null==oTextTemplate ? render(oPlainTemplate, oResolver) : null,
+                                      null==oTextTemplate ? null : oTextTemplate.newBodyPart(oResolver, "plain"),
+                                      null==oHtmlTemplate ? null : oHtmlTemplate.newBodyPart(oResolver, "html"),
+                                      oDocumentImages, sUniqueId, aAttachmentsPath, sUserDir);
+        oCurrentMsg.setFrom(new InternetAddress(sFromAddr, null==sFromPersonal ? sFromAddr : sFromPersonal));
+        if (null!=sReplyAddr) oCurrentMsg.setReplyTo(new Address[]{new InternetAddress(sReplyAddr)});
+      } else {
+        // Only the headers are parsed, the body is shared with the master bytes
+        oCurrentMsg = new MasterCopyMessage (oSes, oMasterMsg.newStream(0l, -1l));
+        oCurrentMsg.setContentID(sId+"."+String.valueOf(r+1));
+      }
+      oCurrentMsg.setRecipient(aRecType[r], new InternetAddress(sRecipientAddr));
+      return oCurrentMsg;
+    } // newMessage
+
+    private String render(MergeTemplate oTemplate, KeyResolver oResolver) {
+      if (null==oTemplate) return null;
+      StringBuilder oBody = new StringBuilder(oTemplate.getLiteralsLength()+64);
+      FastStreamReplacer.render(oTemplate, oResolver, oBody);
+      return oBody.toString();
+    }
+  } // RecipientMessageFactory
+
+  // ---------------------------------------------------------------------------
+
   /**
    * <p>Send e-mail message</p>
    * @param sSubject String e-mail Subject
@@ -1140,74 +1748,46 @@ public class MailSessionHandler {
     final int nRecipients = aRecipients.length;
 	  if (DebugFile.trace) DebugFile.writeln("recipients count is "+String.valueOf(nRecipients));
     
+    String[] aRecipientsAddrs = new String[nRecipients];
+    for (int r=0; r<nRecipients; r++)
+      aRecipientsAddrs[r] = Str.removeChars(aRecipients[r], " \t\r\n");
+
+    RecipientMessageFactory oFactory = new RecipientMessageFactory(sSubject, sFromPersonal, sFromAddr, sReplyAddr,
+                                                                   aRecipientsAddrs, aRecType, sTextBody, sHtmlBody, sEncoding, sId,
+                                                                   aAttachmentsPath, sUserDir, bInlineImages, bHasReplacements);
     int nSend = 0;
-    if (bHasReplacements) {
-    	HashMap<String,String> oMap = new HashMap<String,String>(13);
-    	oMap.put("Message.id", sId);
-    	StringBuffer oTextBody = new StringBuffer(sTextBody);
-    	StringBuffer oHtmlBody = new StringBuffer(sHtmlBody);
-    	FastStreamReplacer oRpl = new FastStreamReplacer();
+    try {
+      if (iCampaignConnections>1 && nRecipients>1) {
+        nSend = dispatchCampaign(aRecipientsAddrs, oFactory, oOut);
+      } else {
         for (int r=0; r<nRecipients; r++) {
-          String sRecipientAddr = Str.removeChars(aRecipients[r], " \t\r\n");
-          if (sRecipientAddr.length()>0) {
+          if (aRecipientsAddrs[r].length()>0) {
             try {
-              String sUniqueId = sId+"."+String.valueOf(r+1);
-              oMap.remove("Message.id");
-          	  oMap.put("Message.id", sUniqueId);          	  
-          	  MimeMessage oCurrentMsg = composeMessage(sSubject, sEncoding, oRpl.replace(oTextBody, oMap), oRpl.replace(oHtmlBody, oMap), sUniqueId, aAttachmentsPath, sUserDir, bInlineImages);
-              oCurrentMsg.setFrom(new InternetAddress(sFromAddr, null==sFromPersonal ? sFromAddr : sFromPersonal));
-              if (null!=sReplyAddr) oCurrentMsg.setReplyTo(new Address[]{new InternetAddress(sReplyAddr)});
-              oCurrentMsg.setRecipient(aRecType[r], new InternetAddress(sRecipientAddr));      
-              sendMessage(oCurrentMsg);
-              oOut.println("OK "+sRecipientAddr);
+              sendBulkMessage(oFactory.newMessage(r));
+              if (oOut!=null) oOut.println("OK "+aRecipientsAddrs[r]);
               nSend++;
             } catch (Exception xcpt) {
-          	  if (oOut==null) {
-          	    if (DebugFile.trace) {
-          	      DebugFile.writeln("ERROR "+aRecipients[r]+" "+xcpt.getClass().getName()+" "+xcpt.getMessage());
-          	      try {
-          	    	DebugFile.writeln(StackTraceUtil.getStackTrace(xcpt));
-          	      } catch (IOException ignore) { }
-          	    }
-          	  } else {
-          	    oOut.println("ERROR at SessionHandler.sendMessage() "+aRecipients[r]+" "+xcpt.getClass().getName()+" "+xcpt.getMessage());
-              } // fi (oOut)
-          	}
-          } // fi (sRecipientAddr!="")
-        } // next    	
-    } else {
-        for (int r=0; r<nRecipients; r++) {
-          String sRecipientAddr = Str.removeChars(aRecipients[r], " \t\r\n");
-          if (sRecipientAddr.length()>0) {
-          	MimeMessage oMasterMsg = composeMessage(sSubject, sEncoding, sTextBody, sHtmlBody, null, aAttachmentsPath, sUserDir, bInlineImages);
-            oMasterMsg.setFrom(new InternetAddress(sFromAddr, null==sFromPersonal ? sFromAddr : sFromPersonal));
-            if (null!=sReplyAddr) oMasterMsg.setReplyTo(new Address[]{new InternetAddress(sReplyAddr)});
-            try {
-              SMTPMessage oCurrentMsg = new SMTPMessage (oMasterMsg);
-              oCurrentMsg.setContentID(sId+"."+String.valueOf(r+1));
-              oCurrentMsg.setRecipient(aRecType[r], new InternetAddress(sRecipientAddr));      
-              sendMessage(oCurrentMsg);
-              if (oOut!=null) oOut.println("OK "+sRecipientAddr);
-              nSend++;
-            }
-            catch (Exception xcpt) {
               String sCause = "";
               if (xcpt.getCause()!=null)
                 sCause = " cause "+xcpt.getCause().getClass().getName()+" "+xcpt.getCause().getMessage();
-          	  if (oOut==null) {
-          	    if (DebugFile.trace) {
-          	    	DebugFile.writeln("ERROR "+aRecipients[r]+" "+xcpt.getClass().getName()+" "+xcpt.getMessage()+sCause);
-            	    try {
-              	      DebugFile.writeln(StackTraceUtil.getStackTrace(xcpt));
-              	    } catch (IOException ignore) { }
-          	    }
-          	  } else {
-          	  	oOut.println("ERROR "+aRecipients[r]+" "+xcpt.getClass().getName()+" "+xcpt.getMessage()+sCause);
-          	  }
+              if (oOut==null) {
+                if (DebugFile.trace) {
+                  DebugFile.writeln("ERROR "+aRecipients[r]+" "+xcpt.getClass().getName()+" "+xcpt.getMessage()+sCause);
+                  try {
+                    DebugFile.writeln(StackTraceUtil.getStackTrace(xcpt));
+                  } catch (IOException ignore) { }
+                }
+              } else {
+                oOut.println("ERROR "+aRecipients[r]+" "+xcpt.getClass().getName()+" "+xcpt.getMessage()+sCause);
+              }
             }
           } // fi (sRecipientAddr!="")
-        } // next    	
-    } // fi
+        } // next
+        if (bBulkReuseTransport && !bReuseTransport) releaseTransport();
+      } // fi
+    } finally {
+      oFactory.close();
+    }
 
     if (nSend==nRecipients) {
     	if (oOut!=null) oOut.println("Process successfully completed. "+String.valueOf(nSend)+" messages sent");
@@ -0,0 +1,499 @@
+package com.knowgate.mail;
+
+/**
+ * © Copyright 2016 the original author.
+ * This file is licensed under the Apache License version 2.0.
+ * You may not use this file except in compliance with the license.
+ * You may obtain a copy of the License at:
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.
+ */
+
+import java.nio.charset.Charset;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.NoSuchProviderException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+import com.knowgate.debug.DebugFile;
+
+/**
+ * <p>Pool of connected javax.mail.Transport objects</p>
+ * A pool is shared by every MailSessionHandler that sends through the same
+ * host, port, account, password, SSL mode and Session properties. Handlers borrow a connected Transport,
+ * send their message and return it to the pool instead of each of them
+ * dialing the relay on its own.<br>
+ * Pool settings are read from the Session properties:
+ * <table><tr><th>Property</th><th>Description</th><th>Default value</th></tr>
+ *        <tr><td>mail.<i>transportprotocol</i>.pool.minsize</td><td>Connections opened in advance and never evicted</td><td>0</td></tr>
+ *        <tr><td>mail.<i>transportprotocol</i>.pool.maxsize</td><td>Maximum connections open at the same time</td><td>8</td></tr>
+ *        <tr><td>mail.<i>transportprotocol</i>.pool.idletimeout</td><td>Milliseconds after which an idle connection is closed</td><td>60000</td></tr>
+ *        <tr><td>mail.<i>transportprotocol</i>.pool.borrowtimeout</td><td>Milliseconds to wait for a free connection</td><td>30000</td></tr>
+ *        <tr><td>mail.<i>transportprotocol</i>.pool.validateafter</td><td>Milliseconds idle after which a connection is checked with NOOP before being borrowed</td><td>5000</td></tr>
+ *        <tr><td>mail.<i>transportprotocol</i>.maxmessagesperconnection</td><td>Messages sent before a connection is recycled, zero for no limit</td><td>100</td></tr>
+ * </table>
+ * @author Sergio Montoro Ten
+ * @version 9.1
+ */
+public class SmtpTransportPool {
+
+  private final String sKey;
+  private final Session oSession;
+  private final int iMinSize;
+  private final int iMaxSize;
+  private final long lIdleTimeout;
+  private final long lBorrowTimeout;
+  private final long lValidateAfter;
+  private final int iMaxMessagesPerConnection;
+  private final Semaphore oPermits;
+  private final LinkedBlockingDeque<PooledTransport> oIdle;
+  private final IdentityHashMap<Transport,PooledTransport> oBorrowed;
+  private TimerTask oEvictTask;
+  private volatile boolean bClosed;
+
+  private static final ConcurrentHashMap<String,SmtpTransportPool> oPools = new ConcurrentHashMap<String,SmtpTransportPool>();
+
+  private static Timer oEvictor = null;
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Create a new pool not registered for sharing
+   * @param oSession Session used to create and connect the Transports
+   * @param sKey String Pool name
+   * @param iMinSize int Idle connections never evicted
+   * @param iMaxSize int Maximum connections open at the same time
+   * @param lIdleTimeout long Milliseconds after which an idle connection is closed
+   * @param lBorrowTimeout long Milliseconds to wait for a free connection
+   * @param iMaxMessagesPerConnection int Messages sent before a connection is recycled, zero for no limit
+   * @throws IllegalArgumentException
+   */
+  public SmtpTransportPool(Session oSession, String sKey, int iMinSize, int iMaxSize,
+                           long lIdleTimeout, long lBorrowTimeout, int iMaxMessagesPerConnection)
+    throws IllegalArgumentException {
+    if (null==oSession) throw new NullPointerException("SmtpTransportPool Session may not be null");
+    if (iMaxSize<1) throw new IllegalArgumentException("SmtpTransportPool maximum size must be at least 1");
+    if (iMinSize<0 || iMinSize>iMaxSize) throw new IllegalArgumentException("SmtpTransportPool minimum size must be between 0 and "+String.valueOf(iMaxSize));
+    this.oSession = oSession;
+    this.sKey = sKey;
+    this.iMinSize = iMinSize;
+    this.iMaxSize = iMaxSize;
+    this.lIdleTimeout = lIdleTimeout;
+    this.lBorrowTimeout = lBorrowTimeout;
+    this.lValidateAfter = getLongProperty(oSession, "pool.validateafter", 5000l);
+    this.iMaxMessagesPerConnection = iMaxMessagesPerConnection;
+    oPermits = new Semaphore(iMaxSize, true);
+    oIdle = new LinkedBlockingDeque<PooledTransport>();
+    oBorrowed = new IdentityHashMap<Transport,PooledTransport>();
+    oEvictTask = null;
+    bClosed = false;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * <p>Get the shared pool for a host, port, account, password, SSL mode and Session properties</p>
+   * If no pool exists for the given values a new one is created with the
+   * settings taken from the Session properties.
+   * Handlers only share a pool if they use the same password and Session properties,
+   * so a connection is never borrowed by a handler with different credentials or settings
+   * than the one which opened it. The Session must authenticate with sUser and sPassword.
+   * @param oSession Session used to create and connect the Transports
+   * @param sHost String SMTP host name
+   * @param iPort int SMTP port
+   * @param sUser String Account name, may be null for anonymous relays
+   * @param sPassword String Account password, may be null for anonymous relays
+   * @param bSSL boolean Whether the connection uses SSL
+   * @return SmtpTransportPool
+   */
+  public static SmtpTransportPool getPool(Session oSession, String sHost, int iPort, String sUser, String sPassword, boolean bSSL) {
+    final String sPoolKey = (sUser==null ? "" : sUser) + "@" + sHost + ":" + String.valueOf(iPort) + (bSSL ? "/ssl" : "") +
+                            "#" + getSettingsHash(oSession, sPassword);
+    SmtpTransportPool oPool = oPools.get(sPoolKey);
+    if (null==oPool) {
+      if (DebugFile.trace) DebugFile.writeln("SmtpTransportPool.getPool() creating pool for "+sPoolKey);
+      SmtpTransportPool oNewPool = new SmtpTransportPool(oSession, sPoolKey,
+                                                         (int) getLongProperty(oSession, "pool.minsize", 0l),
+                                                         (int) getLongProperty(oSession, "pool.maxsize", 8l),
+                                                         getLongProperty(oSession, "pool.idletimeout", 60000l),
+                                                         getLongProperty(oSession, "pool.borrowtimeout", 30000l),
+                                                         (int) getLongProperty(oSession, "maxmessagesperconnection", (long) MailSessionHandler.DEFAULT_MAX_MESSAGES_PER_CONNECTION));
+      oPool = oPools.putIfAbsent(sPoolKey, oNewPool);
+      if (null==oPool) {
+        oPool = oNewPool;
+        oPool.startEvictor();
+      }
+    }
+    return oPool;
+  } // getPool
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Close and unregister all shared pools
+   */
+  public static void closeAll() {
+    Iterator<SmtpTransportPool> oIter = oPools.values().iterator();
+    while (oIter.hasNext()) {
+      SmtpTransportPool oPool = oIter.next();
+      oIter.remove();
+      oPool.close();
+    }
+  } // closeAll
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * @return String Pool name, for shared pools it is <i>account</i>@<i>host</i>:<i>port</i>[/ssl]#<i>hash</i>
+   * where <i>hash</i> is taken from the password and the Session properties
+   */
+  public String getKey() {
+    return sKey;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  public int getMinSize() {
+    return iMinSize;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  public int getMaxSize() {
+    return iMaxSize;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * @return int Number of connected Transports waiting at the pool
+   */
+  public int getIdleCount() {
+    return oIdle.size();
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * @return int Number of Transports currently borrowed
+   */
+  public int getActiveCount() {
+    synchronized (oBorrowed) {
+      return oBorrowed.size();
+    }
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * <p>Borrow a connected Transport</p>
+   * Idle connections are reused most recently returned first. A connection that
+   * has been idle for more than the validation interval is checked with
+   * Transport.isConnected() which for SMTP issues a NOOP command.
+   * Connections idle for longer than the idle timeout are closed unless they are
+   * needed to keep the pool minimum size, in which case they are just validated.
+   * Every borrowed Transport must be given back by calling release() or invalidate().
+   * @return Transport
+   * @throws MessagingException if no connection became available before the borrow timeout
+   * or if a new connection could not be established
+   * @throws IllegalStateException if the pool is closed
+   */
+  public Transport borrow() throws NoSuchProviderException, MessagingException, IllegalStateException {
+    if (bClosed) throw new IllegalStateException("SmtpTransportPool "+sKey+" is closed");
+
+    try {
+      if (!oPermits.tryAcquire(lBorrowTimeout, TimeUnit.MILLISECONDS))
+        throw new MessagingException("SmtpTransportPool.borrow() timeout waiting for a connection to "+sKey);
+    } catch (InterruptedException xcpt) {
+      Thread.currentThread().interrupt();
+      throw new MessagingException("SmtpTransportPool.borrow() interrupted", xcpt);
+    }
+
+    PooledTransport oConn = null;
+    try {
+      long lNow = System.currentTimeMillis();
+      while (null==oConn && null!=(oConn = oIdle.pollFirst())) {
+        if (lNow-oConn.lastUsed>lIdleTimeout && oIdle.size()+getActiveCount()>=iMinSize) {
+          oConn.close();
+          oConn = null;
+        } else if (lNow-oConn.lastUsed>lValidateAfter && !oConn.transport.isConnected()) {
+          if (DebugFile.trace) DebugFile.writeln("SmtpTransportPool.borrow() discarding stale connection to "+sKey);
+          oConn.close();
+          oConn = null;
+        }
+      } // wend
+      if (null==oConn) {
+        if (DebugFile.trace) DebugFile.writeln("SmtpTransportPool.borrow() opening new connection to "+sKey);
+        Transport oTrnsprt = oSession.getTransport();
+        oTrnsprt.connect();
+        oConn = new PooledTransport(oTrnsprt);
+      }
+      synchronized (oBorrowed) {
+        oBorrowed.put(oConn.transport, oConn);
+      }
+    } catch (MessagingException xcpt) {
+      oPermits.release();
+      throw xcpt;
+    } catch (RuntimeException xcpt) {
+      oPermits.release();
+      throw xcpt;
+    }
+
+    return oConn.transport;
+  } // borrow
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * <p>Give back a Transport obtained by borrow()</p>
+   * The Transport is kept open for reuse unless the pool is closed or the
+   * connection has reached its maximum number of messages.
+   * @param oTrnsprt Transport
+   */
+  public void release(Transport oTrnsprt) {
+    PooledTransport oConn;
+    synchronized (oBorrowed) {
+      oConn = oBorrowed.remove(oTrnsprt);
+    }
+    if (null==oConn) return;
+    oConn.lastUsed = System.currentTimeMillis();
+    if (bClosed || (iMaxMessagesPerConnection>0 && ++oConn.uses>=iMaxMessagesPerConnection))
+      oConn.close();
+    else
+      oIdle.offerFirst(oConn);
+    oPermits.release();
+  } // release
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Give back a broken Transport obtained by borrow(). The connection is closed and discarded.
+   * @param oTrnsprt Transport
+   */
+  public void invalidate(Transport oTrnsprt) {
+    PooledTransport oConn;
+    synchronized (oBorrowed) {
+      oConn = oBorrowed.remove(oTrnsprt);
+    }
+    if (null==oConn) return;
+    oConn.close();
+    oPermits.release();
+  } // invalidate
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * <p>Send a message using a borrowed Transport</p>
+   * If the connection fails while sending then it is discarded, but the message
+   * is not sent again because the server may have accepted it before failing.
+   * Connections which may have been closed by the server while idle are checked by borrow().
+   * The message is only sent again through another connection if the Transport was
+   * not connected, which is reported before sending any command.
+   * The caller is responsible for calling Message.saveChanges() before.
+   * @param oMsg Message
+   * @param aAddrs Address[]
+   * @throws SendFailedException if any recipient was rejected
+   * @throws MessagingException
+   */
+  public void send(Message oMsg, Address[] aAddrs)
+    throws NoSuchProviderException,SendFailedException,MessagingException {
+    Transport oTrnsprt = borrow();
+    boolean bRetry = false;
+    try {
+      oTrnsprt.sendMessage(oMsg, aAddrs);
+      release(oTrnsprt);
+    } catch (SendFailedException sfe) {
+      release(oTrnsprt);
+      throw sfe;
+    } catch (MessagingException xcpt) {
+      if (DebugFile.trace) DebugFile.writeln("SmtpTransportPool.send() MessagingException "+xcpt.getMessage()+" discarding connection");
+      invalidate(oTrnsprt);
+      throw xcpt;
+    } catch (IllegalStateException xcpt) {
+      if (DebugFile.trace) DebugFile.writeln("SmtpTransportPool.send() IllegalStateException "+xcpt.getMessage()+" retrying with a new connection");
+      invalidate(oTrnsprt);
+      bRetry = true;
+    } catch (RuntimeException xcpt) {
+      invalidate(oTrnsprt);
+      throw xcpt;
+    }
+    if (bRetry) {
+      oTrnsprt = borrow();
+      try {
+        oTrnsprt.sendMessage(oMsg, aAddrs);
+        release(oTrnsprt);
+      } catch (SendFailedException sfe) {
+        release(oTrnsprt);
+        throw sfe;
+      } catch (MessagingException xcpt) {
+        invalidate(oTrnsprt);
+        throw xcpt;
+      } catch (RuntimeException xcpt) {
+        invalidate(oTrnsprt);
+        throw xcpt;
+      }
+    }
+  } // send
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Close connections that have been idle for longer than the idle timeout,
+   * keeping at least the pool minimum size open.
+   * This method is called periodically for shared pools.
+   */
+  public void evictIdle() {
+    final long lNow = System.currentTimeMillis();
+    Iterator<PooledTransport> oIter = oIdle.descendingIterator();
+    while (oIter.hasNext() && oIdle.size()+getActiveCount()>iMinSize) {
+      PooledTransport oConn = oIter.next();
+      if (lNow-oConn.lastUsed>lIdleTimeout && oIdle.remove(oConn)) {
+        if (DebugFile.trace) DebugFile.writeln("SmtpTransportPool.evictIdle() closing idle connection to "+sKey);
+        oConn.close();
+      }
+    } // wend
+  } // evictIdle
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Open new connections until the pool has at least its minimum size.
+   * This method is called periodically for shared pools.
+   * Connections are not opened beyond the maximum size and
+   * a failure to connect just stops filling the pool until the next call.
+   */
+  public void fillToMinSize() {
+    while (!bClosed && oIdle.size()+getActiveCount()<iMinSize && oPermits.tryAcquire()) {
+      try {
+        if (DebugFile.trace) DebugFile.writeln("SmtpTransportPool.fillToMinSize() opening new connection to "+sKey);
+        Transport oTrnsprt = oSession.getTransport();
+        oTrnsprt.connect();
+        oIdle.offerLast(new PooledTransport(oTrnsprt));
+      } catch (MessagingException xcpt) {
+        if (DebugFile.trace) DebugFile.writeln("SmtpTransportPool.fillToMinSize() MessagingException "+xcpt.getMessage());
+        break;
+      } catch (RuntimeException xcpt) {
+        if (DebugFile.trace) DebugFile.writeln("SmtpTransportPool.fillToMinSize() "+xcpt.getClass().getName()+" "+xcpt.getMessage());
+        break;
+      } finally {
+        oPermits.release();
+      }
+    } // wend
+  } // fillToMinSize
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Close all idle connections and refuse further borrows.
+   * Borrowed connections are closed when they are released.
+   */
+  public void close() {
+    bClosed = true;
+    synchronized (SmtpTransportPool.class) {
+      if (oEvictTask!=null) {
+        oEvictTask.cancel();
+        oEvictTask = null;
+      }
+    }
+    oPools.remove(sKey, this);
+    PooledTransport oConn;
+    while (null!=(oConn = oIdle.pollFirst()))
+      oConn.close();
+  } // close
+
+  // ---------------------------------------------------------------------------
+
+  private void startEvictor() {
+    final long lPeriod = Math.max(1000l, lIdleTimeout/2l);
+    synchronized (SmtpTransportPool.class) {
+      if (null==oEvictor)
+        oEvictor = new Timer("SmtpTransportPool evictor", true);
+      oEvictTask = new TimerTask() {
+        public void run() {
+          evictIdle();
+          fillToMinSize();
+        }
+      };
+      oEvictor.schedule(oEvictTask, iMinSize>0 ? 0l : lPeriod, lPeriod);
+    }
+  } // startEvictor
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * @return String Hexadecimal SHA-256 of the password and the Session properties sorted by name
+   */
+  private static String getSettingsHash(Session oSession, String sPassword) {
+    MessageDigest oDigest;
+    try {
+      oDigest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException xcpt) {
+      throw new IllegalStateException("SmtpTransportPool SHA-256 is not available", xcpt);
+    }
+    final Charset oUtf8 = Charset.forName("UTF-8");
+    if (null!=sPassword) oDigest.update(sPassword.getBytes(oUtf8));
+    final Properties oProps = oSession.getProperties();
+    for (String sName : new TreeSet<String>(oProps.stringPropertyNames())) {
+      oDigest.update((byte) 0);
+      oDigest.update(sName.getBytes(oUtf8));
+      oDigest.update((byte) '=');
+      oDigest.update(oProps.getProperty(sName).getBytes(oUtf8));
+    }
+    final byte[] aHash = oDigest.digest();
+    StringBuilder oHex = new StringBuilder(aHash.length*2);
+    for (int b=0; b<aHash.length; b++)
+      oHex.append(Character.forDigit((aHash[b]>>4) & 0x0F, 16)).append(Character.forDigit(aHash[b] & 0x0F, 16));
+    return oHex.toString();
+  } // getSettingsHash
+
+  // ---------------------------------------------------------------------------
+
+  private static long getLongProperty(Session oSession, String sName, long lDefault) {
+    String sProtocol = oSession.getProperty("mail.transport.protocol");
+    if (null==sProtocol) sProtocol = "smtp";
+    String sValue = oSession.getProperty("mail."+sProtocol+"."+sName);
+    return null==sValue ? lDefault : Long.parseLong(sValue.trim());
+  }
+
+  // ---------------------------------------------------------------------------
+
+  static class PooledTransport {
+    Transport transport;
+    long lastUsed;
+    int uses;
+
+    PooledTransport(Transport oTrnsprt) {
+      transport = oTrnsprt;
+      lastUsed = System.currentTimeMillis();
+      uses = 0;
+    }
+
+    void close() {
+      try {
+        transport.close();
+      } catch (MessagingException ignore) { }
+    }
+  } // PooledTransport
+
+} // SmtpTransportPool
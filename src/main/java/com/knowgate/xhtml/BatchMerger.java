@@ -0,0 +1,215 @@
+package com.knowgate.xhtml;
+
+/**
+ * © Copyright 2016 the original author.
+ * This file is licensed under the Apache License version 2.0.
+ * You may not use this file except in compliance with the license.
+ * You may obtain a copy of the License at:
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.
+ */
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * <p>Merge one template with many rows of values</p>
+ * Each row of values is rendered with a precompiled MergeTemplate and the
+ * resulting document is passed to a MergeSink, in the same order as the rows.<br>
+ * In sequential mode rows are rendered at the caller thread into a single reused buffer.
+ * In parallel mode rows are read in chunks at the caller thread and rendered at
+ * the threads of a ForkJoinPool, while the documents of already rendered chunks
+ * are delivered to the sink from the caller thread. At most a fixed number of chunks
+ * are pending at any time, so a sink that blocks slows down the reading of rows
+ * and memory usage stays bounded whatever the number of rows.<br>
+ * System.Date and Sistema.Fecha are replaced as with FastStreamReplacer.render().
+ * @author Sergio Montoro Ten
+ * @version 9.1
+ * @since 9.1
+ */
+public class BatchMerger {
+
+  /**
+   * Default number of rows per chunk in parallel mode
+   */
+  public static final int DEFAULT_CHUNK_SIZE = 256;
+
+  private final MergeTemplate oTemplate;
+  private final ForkJoinPool oPool;
+  private final int iChunkSize;
+  private final int iMaxPendingChunks;
+
+  // ----------------------------------------------------------
+
+  /**
+   * Receiver of merged documents
+   */
+  public interface MergeSink {
+    /**
+     * Called from the thread that invoked merge(), once per row and in row order.
+     * The sink may block for slowing down the merge.
+     * @param lRow long Row number starting at zero
+     * @param oDocument CharSequence Merged document. In sequential mode this is a
+     * buffer which is reused for the next row, so it must be copied if it has to be kept
+     * after this method returns.
+     * @throws Exception Any exception thrown by the sink stops the merge
+     */
+    void write(long lRow, CharSequence oDocument) throws Exception;
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * Create sequential merger
+   * @param oTemplate MergeTemplate
+   */
+  public BatchMerger(MergeTemplate oTemplate) {
+    this(oTemplate, null, DEFAULT_CHUNK_SIZE);
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * Create parallel merger
+   * @param oTemplate MergeTemplate
+   * @param oPool ForkJoinPool used for rendering or <b>null</b> for rendering at the caller thread
+   * @param iChunkSize int Number of rows read from the iterator before rendering them
+   * @throws IllegalArgumentException if iChunkSize is less than 1
+   */
+  public BatchMerger(MergeTemplate oTemplate, ForkJoinPool oPool, int iChunkSize) throws IllegalArgumentException {
+    if (null==oTemplate) throw new NullPointerException("BatchMerger template may not be null");
+    if (iChunkSize<1) throw new IllegalArgumentException("BatchMerger chunk size must be at least 1");
+    this.oTemplate = oTemplate;
+    this.oPool = oPool;
+    this.iChunkSize = iChunkSize;
+    this.iMaxPendingChunks = null==oPool ? 1 : 2*oPool.getParallelism();
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * @return boolean <b>true</b> if documents are rendered at a ForkJoinPool
+   */
+  public boolean isParallel() {
+    return oPool!=null;
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * <p>Merge template with each row and send the result to a sink</p>
+   * @param oRows Iterator of maps with the values of each row. The iterator is
+   * only used from the caller thread, but in parallel mode the maps are read from
+   * other threads after next() has returned them, so they must not be modified afterwards.
+   * @param oSink MergeSink
+   * @return long Number of documents written to the sink
+   * @throws Exception Exception thrown by the sink or by the iterator
+   */
+  public long merge(Iterator<? extends Map<String,?>> oRows, MergeSink oSink) throws Exception {
+    if (null==oPool)
+      return mergeSequential(oRows, oSink);
+    else
+      return mergeParallel(oRows, oSink);
+  }
+
+  // ----------------------------------------------------------
+
+  private long mergeSequential(Iterator<? extends Map<String,?>> oRows, MergeSink oSink) throws Exception {
+    long lRow = 0l;
+    StringBuilder oOut = new StringBuilder(oTemplate.getLiteralsLength()+(oTemplate.getSlotCount()*16));
+    while (oRows.hasNext()) {
+      oOut.setLength(0);
+      FastStreamReplacer.render(oTemplate, oRows.next(), oOut);
+      oSink.write(lRow++, oOut);
+    }
+    return lRow;
+  } // mergeSequential
+
+  // ----------------------------------------------------------
+
+  private long mergeParallel(Iterator<? extends Map<String,?>> oRows, MergeSink oSink) throws Exception {
+    ArrayDeque<ForkJoinTask<String[]>> oPending = new ArrayDeque<ForkJoinTask<String[]>>(iMaxPendingChunks);
+    long lRow = 0l;
+    try {
+      while (oRows.hasNext()) {
+        Map<?,?>[] aChunk = new Map<?,?>[iChunkSize];
+        int nRows = 0;
+        while (nRows<iChunkSize && oRows.hasNext())
+          aChunk[nRows++] = oRows.next();
+        oPending.addLast(oPool.submit(new RenderChunk(oTemplate, aChunk, 0, nRows)));
+        if (oPending.size()>=iMaxPendingChunks)
+          lRow = deliver(oPending.removeFirst(), lRow, oSink);
+      } // wend
+      while (!oPending.isEmpty())
+        lRow = deliver(oPending.removeFirst(), lRow, oSink);
+    } finally {
+      for (ForkJoinTask<String[]> oTask : oPending)
+        oTask.cancel(false);
+    }
+    return lRow;
+  } // mergeParallel
+
+  // ----------------------------------------------------------
+
+  private static long deliver(ForkJoinTask<String[]> oTask, long lRow, MergeSink oSink) throws Exception {
+    String[] aDocs = oTask.join();
+    for (int d=0; d<aDocs.length; d++)
+      oSink.write(lRow++, aDocs[d]);
+    return lRow;
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * Render a range of rows, splitting it in halves while it is larger than a minimum size
+   */
+  @SuppressWarnings("serial")
+  private static class RenderChunk extends RecursiveTask<String[]> {
+
+    private static final int MIN_SPLIT = 32;
+
+    private final MergeTemplate oTemplate;
+    private final Map<?,?>[] aRows;
+    private final int iFrom, iTo;
+
+    RenderChunk(MergeTemplate oTemplate, Map<?,?>[] aRows, int iFrom, int iTo) {
+      this.oTemplate = oTemplate;
+      this.aRows = aRows;
+      this.iFrom = iFrom;
+      this.iTo = iTo;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected String[] compute() {
+      final int nRows = iTo-iFrom;
+      String[] aDocs = new String[nRows];
+      if (nRows>MIN_SPLIT) {
+        final int iMid = iFrom+nRows/2;
+        RenderChunk oLeft = new RenderChunk(oTemplate, aRows, iFrom, iMid);
+        RenderChunk oRight = new RenderChunk(oTemplate, aRows, iMid, iTo);
+        oRight.fork();
+        String[] aLeft = oLeft.compute();
+        String[] aRight = oRight.join();
+        System.arraycopy(aLeft, 0, aDocs, 0, aLeft.length);
+        System.arraycopy(aRight, 0, aDocs, aLeft.length, aRight.length);
+      } else {
+        StringBuilder oOut = new StringBuilder(oTemplate.getLiteralsLength()+(oTemplate.getSlotCount()*16));
+        for (int r=iFrom; r<iTo; r++) {
+          oOut.setLength(0);
+          FastStreamReplacer.render(oTemplate, (Map<String,?>) aRows[r], oOut);
+          aDocs[r-iFrom] = oOut.toString();
+        }
+      }
+      return aDocs;
+    } // compute
+  } // RenderChunk
+
+} // BatchMerger
@@ -0,0 +1,562 @@
+package com.knowgate.xhtml;
+
+/**
+ * © Copyright 2016 the original author.
+ * This file is licensed under the Apache License version 2.0.
+ * You may not use this file except in compliance with the license.
+ * You may obtain a copy of the License at:
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.
+ */
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Concurrent map with a bounded total weight</p>
+ * Each entry has a weight given by a Weigher, or 1 if no Weigher is set,
+ * so the bound is either a maximum number of entries or an estimated size.
+ * When a write takes the total weight over the bound, the least recently used
+ * or the least frequently used entries are evicted until it fits again.<br>
+ * Reads take no lock. Writes that cause evictions serialize on an eviction lock.
+ * Each eviction does not scan the whole map but a sample of the next entries of a
+ * cursor which goes round it, and evicts the coldest entry of the sample.
+ * So eviction takes constant time whatever the number of entries, and the order
+ * of eviction is an approximation of the policy, which is exact for caches of up to 16 entries.<br>
+ * Optionally values may be softly referenced, then the garbage collector
+ * may also evict them when memory runs low.<br>
+ * Hits, misses and evictions are counted. Loading is done by the callers, which
+ * may report the time spent loading each value with recordLoad().
+ * Keys and values may not be <b>null</b>.
+ * @author Sergio Montoro Ten
+ * @version 9.1
+ * @since 9.1
+ */
+public class BoundedCache<K,V> extends AbstractMap<K,V> implements ConcurrentMap<K,V> {
+
+  /**
+   * Eviction policy
+   */
+  public enum EvictionPolicy {
+    /**
+     * Evict the entry which was read or written longest ago
+     */
+    LRU,
+    /**
+     * Evict the entry with fewer hits, or the least recently used of those with the same hits
+     */
+    LFU
+  }
+
+  /**
+   * Estimates the weight of an entry
+   */
+  public interface Weigher<K,V> {
+    /**
+     * @param oKey K
+     * @param oValue V
+     * @return long Weight, must not be negative and must not change while the entry is cached
+     */
+    long weigh(K oKey, V oValue);
+  }
+
+  private final ConcurrentHashMap<K,Node<K,V>> oMap;
+  private final ReferenceQueue<V> oCollected;
+  private final ReentrantLock oEvictLock;
+  private final Weigher<? super K,? super V> oWeigher;
+  private final EvictionPolicy ePolicy;
+  private final boolean bSoftValues;
+  private final long lMaxWeight;
+  private final AtomicLong lWeight;
+  private final AtomicLong lHits, lMisses, lEvictions, lLoads, lLoadFailures, lLoadNanos;
+  // Guarded by oEvictLock
+  private Iterator<Node<K,V>> oCursor;
+
+  private static final int EVICTION_SAMPLE = 16;
+
+  // ----------------------------------------------------------
+
+  /**
+   * Create LRU cache for a maximum number of entries with strongly referenced values
+   * @param iMaxEntries int
+   * @throws IllegalArgumentException if iMaxEntries is less than 1
+   */
+  public BoundedCache(int iMaxEntries) throws IllegalArgumentException {
+    this(iMaxEntries, null, EvictionPolicy.LRU, false);
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * @param lMaxWeight long Maximum total weight of the entries
+   * @param oWeigher Weigher or <b>null</b> if lMaxWeight is the maximum number of entries
+   * @param ePolicy EvictionPolicy
+   * @param bSoftValues boolean If <b>true</b> values are kept through soft references
+   * @throws IllegalArgumentException if lMaxWeight is less than 1
+   */
+  public BoundedCache(long lMaxWeight, Weigher<? super K,? super V> oWeigher, EvictionPolicy ePolicy, boolean bSoftValues)
+    throws IllegalArgumentException {
+    if (lMaxWeight<1l) throw new IllegalArgumentException("BoundedCache maximum weight must be at least 1");
+    if (null==ePolicy) throw new NullPointerException("BoundedCache eviction policy may not be null");
+    this.oMap = new ConcurrentHashMap<K,Node<K,V>>();
+    this.oCollected = bSoftValues ? new ReferenceQueue<V>() : null;
+    this.oEvictLock = new ReentrantLock();
+    this.oWeigher = oWeigher;
+    this.ePolicy = ePolicy;
+    this.bSoftValues = bSoftValues;
+    this.lMaxWeight = lMaxWeight;
+    this.lWeight = new AtomicLong();
+    this.lHits = new AtomicLong();
+    this.lMisses = new AtomicLong();
+    this.lEvictions = new AtomicLong();
+    this.lLoads = new AtomicLong();
+    this.lLoadFailures = new AtomicLong();
+    this.lLoadNanos = new AtomicLong();
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * @return long Maximum total weight
+   */
+  public long getMaxWeight() {
+    return lMaxWeight;
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * @return long Current total weight
+   */
+  public long getWeight() {
+    return lWeight.get();
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * @return EvictionPolicy
+   */
+  public EvictionPolicy getEvictionPolicy() {
+    return ePolicy;
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * @return boolean <b>true</b> if values are softly referenced
+   */
+  public boolean hasSoftValues() {
+    return bSoftValues;
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * Get a cached value and count a hit or a miss
+   * @param oKey Object
+   * @return V or <b>null</b> if oKey is not cached
+   */
+  @Override
+  public V get(Object oKey) {
+    final Node<K,V> oNode = oMap.get(oKey);
+    final V oValue = null==oNode ? null : oNode.getValue();
+    if (null==oValue) {
+      if (null!=oNode) unlink(oNode, true);
+      lMisses.incrementAndGet();
+      return null;
+    }
+    oNode.touch();
+    lHits.incrementAndGet();
+    return oValue;
+  } // get
+
+  // ----------------------------------------------------------
+
+  /**
+   * Check whether a key is cached without counting a hit or a miss
+   * @param oKey Object
+   * @return boolean
+   */
+  @Override
+  public boolean containsKey(Object oKey) {
+    final Node<K,V> oNode = oMap.get(oKey);
+    return null!=oNode && null!=oNode.getValue();
+  }
+
+  // ----------------------------------------------------------
+
+  @Override
+  public V put(K oKey, V oValue) {
+    final Node<K,V> oNode = newNode(oKey, oValue);
+    final Node<K,V> oOld = oMap.put(oKey, oNode);
+    lWeight.addAndGet(oNode.lWeight - (null==oOld ? 0l : oOld.lWeight));
+    evict(oNode);
+    return null==oOld ? null : oOld.getValue();
+  } // put
+
+  // ----------------------------------------------------------
+
+  public V putIfAbsent(K oKey, V oValue) {
+    final Node<K,V> oNode = newNode(oKey, oValue);
+    while (true) {
+      final Node<K,V> oOld = oMap.putIfAbsent(oKey, oNode);
+      if (null==oOld) {
+        lWeight.addAndGet(oNode.lWeight);
+        evict(oNode);
+        return null;
+      }
+      final V oOldValue = oOld.getValue();
+      if (null!=oOldValue) {
+        oOld.touch();
+        return oOldValue;
+      }
+      // The old value was garbage collected, discard its entry and try again
+      unlink(oOld, true);
+    }
+  } // putIfAbsent
+
+  // ----------------------------------------------------------
+
+  public boolean replace(K oKey, V oOldValue, V oNewValue) {
+    final Node<K,V> oOld = oMap.get(oKey);
+    if (null==oOld || !oOldValue.equals(oOld.getValue())) return false;
+    final Node<K,V> oNode = newNode(oKey, oNewValue);
+    if (!oMap.replace(oKey, oOld, oNode)) return false;
+    lWeight.addAndGet(oNode.lWeight - oOld.lWeight);
+    evict(oNode);
+    return true;
+  } // replace
+
+  // ----------------------------------------------------------
+
+  public V replace(K oKey, V oValue) {
+    final Node<K,V> oNode = newNode(oKey, oValue);
+    final Node<K,V> oOld = oMap.replace(oKey, oNode);
+    if (null==oOld) return null;
+    lWeight.addAndGet(oNode.lWeight - oOld.lWeight);
+    evict(oNode);
+    return oOld.getValue();
+  } // replace
+
+  // ----------------------------------------------------------
+
+  @Override
+  public V remove(Object oKey) {
+    final Node<K,V> oOld = oMap.remove(oKey);
+    if (null==oOld) return null;
+    lWeight.addAndGet(-oOld.lWeight);
+    return oOld.getValue();
+  } // remove
+
+  // ----------------------------------------------------------
+
+  public boolean remove(Object oKey, Object oValue) {
+    final Node<K,V> oOld = oMap.get(oKey);
+    if (null==oOld || null==oValue || !oValue.equals(oOld.getValue())) return false;
+    return unlink(oOld, false);
+  } // remove
+
+  // ----------------------------------------------------------
+
+  @Override
+  public void clear() {
+    for (Node<K,V> oNode : oMap.values())
+      unlink(oNode, false);
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * @return int Number of entries, including those whose soft value has been collected but not yet discarded
+   */
+  @Override
+  public int size() {
+    return oMap.size();
+  }
+
+  // ----------------------------------------------------------
+
+  @Override
+  public boolean isEmpty() {
+    return oMap.isEmpty();
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * @return Set View of the entries. Its iterator skips collected soft values and supports remove().
+   */
+  @Override
+  public Set<Map.Entry<K,V>> entrySet() {
+    return new AbstractSet<Map.Entry<K,V>>() {
+      public int size() {
+        return oMap.size();
+      }
+      public void clear() {
+        BoundedCache.this.clear();
+      }
+      public Iterator<Map.Entry<K,V>> iterator() {
+        return new EntryIterator();
+      }
+    };
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * Report the time spent loading a value which was not cached
+   * @param lElapsedNanos long Load time in nanoseconds
+   * @param bSuccess boolean <b>false</b> if the load failed
+   */
+  public void recordLoad(long lElapsedNanos, boolean bSuccess) {
+    lLoads.incrementAndGet();
+    if (!bSuccess) lLoadFailures.incrementAndGet();
+    lLoadNanos.addAndGet(lElapsedNanos);
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * @return Stats Snapshot of the cache statistics
+   */
+  public Stats getStats() {
+    return new Stats(lHits.get(), lMisses.get(), lEvictions.get(), lLoads.get(), lLoadFailures.get(),
+                     lLoadNanos.get(), oMap.size(), lWeight.get(), lMaxWeight);
+  }
+
+  // ----------------------------------------------------------
+
+  private Node<K,V> newNode(K oKey, V oValue) {
+    if (null==oKey) throw new NullPointerException("BoundedCache key may not be null");
+    if (null==oValue) throw new NullPointerException("BoundedCache value may not be null");
+    drainCollected();
+    return new Node<K,V>(oKey, oValue, null==oWeigher ? 1l : oWeigher.weigh(oKey, oValue), oCollected);
+  }
+
+  // ----------------------------------------------------------
+
+  private boolean unlink(Node<K,V> oNode, boolean bEvicted) {
+    if (!oMap.remove(oNode.oKey, oNode)) return false;
+    lWeight.addAndGet(-oNode.lWeight);
+    if (bEvicted) lEvictions.incrementAndGet();
+    return true;
+  }
+
+  // ----------------------------------------------------------
+
+  @SuppressWarnings("unchecked")
+  private void drainCollected() {
+    if (null!=oCollected) {
+      Reference<? extends V> oRef;
+      while ((oRef = oCollected.poll())!=null)
+        unlink(((SoftValue<K,V>) oRef).oNode, true);
+    }
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * Evict entries until the total weight fits the bound.
+   * Each victim is the coldest of the next EVICTION_SAMPLE entries of the cursor.
+   * The entry just written is evicted last, otherwise it would always be
+   * the first victim under LFU because it has no hits yet.
+   */
+  private void evict(Node<K,V> oWritten) {
+    if (lWeight.get()<=lMaxWeight) return;
+    oEvictLock.lock();
+    try {
+      while (lWeight.get()>lMaxWeight) {
+        Node<K,V> oVictim = null;
+        boolean bRestarted = false;
+        for (int s=0; s<EVICTION_SAMPLE || null==oVictim; s++) {
+          if (null==oCursor || !oCursor.hasNext()) {
+            // Go round again, but only once per victim so that small maps are not sampled twice
+            if (bRestarted) break;
+            oCursor = oMap.values().iterator();
+            bRestarted = true;
+            if (!oCursor.hasNext()) break;
+          }
+          final Node<K,V> oNode = oCursor.next();
+          // The cursor is weakly consistent and may return entries already removed
+          if (oNode!=oWritten && oMap.get(oNode.oKey)==oNode && (null==oVictim || oNode.isColderThan(oVictim, ePolicy))) oVictim = oNode;
+        } // next
+        if (null==oVictim) {
+          if (oMap.get(oWritten.oKey)!=oWritten) break;
+          oVictim = oWritten;
+        }
+        unlink(oVictim, true);
+      } // wend
+    } finally {
+      oEvictLock.unlock();
+    }
+  } // evict
+
+  // ----------------------------------------------------------
+
+  private static final class Node<K,V> {
+    final K oKey;
+    final long lWeight;
+    private final V oStrongValue;
+    private final SoftValue<K,V> oSoftValue;
+    // Both are updated without synchronization, so they are approximate under concurrent hits
+    volatile long lLastAccess;
+    volatile int iHits;
+
+    Node(K oKey, V oValue, long lWeight, ReferenceQueue<V> oQueue) {
+      this.oKey = oKey;
+      this.lWeight = lWeight;
+      this.oStrongValue = null==oQueue ? oValue : null;
+      this.oSoftValue = null==oQueue ? null : new SoftValue<K,V>(oValue, oQueue, this);
+      this.lLastAccess = System.nanoTime();
+    }
+
+    V getValue() {
+      return null==oSoftValue ? oStrongValue : oSoftValue.get();
+    }
+
+    void touch() {
+      lLastAccess = System.nanoTime();
+      iHits++;
+    }
+
+    boolean isColderThan(Node<K,V> oOther, EvictionPolicy ePolicy) {
+      if (EvictionPolicy.LFU==ePolicy && iHits!=oOther.iHits)
+        return iHits<oOther.iHits;
+      return lLastAccess-oOther.lLastAccess<0l;
+    }
+  } // Node
+
+  // ----------------------------------------------------------
+
+  private static final class SoftValue<K,V> extends SoftReference<V> {
+    final Node<K,V> oNode;
+
+    SoftValue(V oValue, ReferenceQueue<V> oQueue, Node<K,V> oNode) {
+      super(oValue, oQueue);
+      this.oNode = oNode;
+    }
+  } // SoftValue
+
+  // ----------------------------------------------------------
+
+  private final class EntryIterator implements Iterator<Map.Entry<K,V>> {
+    private final Iterator<Node<K,V>> oNodes = oMap.values().iterator();
+    private Map.Entry<K,V> oNext;
+    private Node<K,V> oLast;
+    private Node<K,V> oNextNode;
+
+    public boolean hasNext() {
+      while (null==oNext && oNodes.hasNext()) {
+        final Node<K,V> oNode = oNodes.next();
+        final V oValue = oNode.getValue();
+        if (null!=oValue) {
+          oNext = new AbstractMap.SimpleImmutableEntry<K,V>(oNode.oKey, oValue);
+          oNextNode = oNode;
+        }
+      }
+      return null!=oNext;
+    }
+
+    public Map.Entry<K,V> next() {
+      if (!hasNext()) throw new NoSuchElementException();
+      final Map.Entry<K,V> oRetVal = oNext;
+      oLast = oNextNode;
+      oNext = null;
+      oNextNode = null;
+      return oRetVal;
+    }
+
+    public void remove() {
+      if (null==oLast) throw new IllegalStateException();
+      unlink(oLast, false);
+      oLast = null;
+    }
+  } // EntryIterator
+
+  // ----------------------------------------------------------
+
+  /**
+   * Immutable snapshot of cache statistics
+   */
+  public static final class Stats {
+    private final long lHits, lMisses, lEvictions, lLoads, lLoadFailures, lLoadNanos, lWeight, lMaxWeight;
+    private final int iSize;
+
+    Stats(long lHits, long lMisses, long lEvictions, long lLoads, long lLoadFailures, long lLoadNanos,
+          int iSize, long lWeight, long lMaxWeight) {
+      this.lHits = lHits;
+      this.lMisses = lMisses;
+      this.lEvictions = lEvictions;
+      this.lLoads = lLoads;
+      this.lLoadFailures = lLoadFailures;
+      this.lLoadNanos = lLoadNanos;
+      this.iSize = iSize;
+      this.lWeight = lWeight;
+      this.lMaxWeight = lMaxWeight;
+    }
+
+    public long getHitCount() { return lHits; }
+
+    public long getMissCount() { return lMisses; }
+
+    /**
+     * @return long Entries removed because of the weight bound or because their soft value was collected
+     */
+    public long getEvictionCount() { return lEvictions; }
+
+    public long getLoadCount() { return lLoads; }
+
+    public long getLoadFailureCount() { return lLoadFailures; }
+
+    /**
+     * @return long Total time spent loading values in nanoseconds
+     */
+    public long getTotalLoadTime() { return lLoadNanos; }
+
+    public int getSize() { return iSize; }
+
+    public long getWeight() { return lWeight; }
+
+    public long getMaxWeight() { return lMaxWeight; }
+
+    /**
+     * @return double Ratio of hits to requests, or 1 if there were no requests
+     */
+    public double getHitRate() {
+      final long lRequests = lHits+lMisses;
+      return 0l==lRequests ? 1d : ((double) lHits) / lRequests;
+    }
+
+    /**
+     * @return double Average load time in milliseconds, or 0 if nothing was loaded
+     */
+    public double getAverageLoadMillis() {
+      return 0l==lLoads ? 0d : lLoadNanos / (lLoads*1000000d);
+    }
+
+    @Override
+    public String toString() {
+      return "hits="+lHits+" misses="+lMisses+" hitRate="+getHitRate()+" evictions="+lEvictions+
+             " loads="+lLoads+" loadFailures="+lLoadFailures+" averageLoadMillis="+getAverageLoadMillis()+
+             " size="+iSize+" weight="+lWeight+"/"+lMaxWeight;
+    }
+  } // Stats
+
+} // BoundedCache
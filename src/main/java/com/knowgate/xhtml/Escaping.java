@@ -0,0 +1,199 @@
+package com.knowgate.xhtml;
+
+/**
+ * © Copyright 2016 the original author.
+ * This file is licensed under the Apache License version 2.0.
+ * You may not use this file except in compliance with the license.
+ * You may obtain a copy of the License at:
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.
+ */
+
+import java.io.IOException;
+
+/**
+ * <p>Escaping applied to a value when it replaces a {#<i>key</i>} marker</p>
+ * The escaping context of a marker is declared by appending a suffix to its key:
+ * {#<i>key</i>|html}, {#<i>key</i>|attr}, {#<i>key</i>|url} or {#<i>key</i>|none}.
+ * Values are escaped while they are appended to the output, without creating
+ * an intermediate escaped String for each value.
+ * @author Sergio Montoro Ten
+ * @version 9.1
+ * @since 9.1
+ */
+public enum Escaping {
+
+  /**
+   * Value is written as is
+   */
+  NONE("none"),
+
+  /**
+   * HTML text, &amp; &lt; and &gt; are replaced by entities
+   */
+  HTML("html"),
+
+  /**
+   * Quoted HTML attribute value, &amp; &lt; &gt; &quot; and ' are replaced by entities
+   */
+  ATTRIBUTE("attr"),
+
+  /**
+   * URL query parameter, every character except A-Z a-z 0-9 - _ . ~ is percent encoded as UTF-8
+   */
+  URL("url");
+
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+  private final String sSuffix;
+
+  Escaping(String sSuffix) {
+    this.sSuffix = sSuffix;
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * @return String Suffix that declares this escaping at a marker, without the leading |
+   */
+  public String getSuffix() {
+    return sSuffix;
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * @param sSuffix String Suffix without the leading |
+   * @return Escaping or <b>null</b> if sSuffix is not a known escaping suffix
+   */
+  public static Escaping forSuffix(String sSuffix) {
+    for (Escaping oEsc : values())
+      if (oEsc.sSuffix.equals(sSuffix)) return oEsc;
+    return null;
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * Get the escaping declared at a key
+   * @param sKey String Key as found between {# and }
+   * @param oDefault Escaping to be returned if sKey has no escaping suffix
+   * @return Escaping
+   */
+  static Escaping forKey(String sKey, Escaping oDefault) {
+    final int iBar = sKey.lastIndexOf('|');
+    if (iBar<=0) return oDefault;
+    final Escaping oEsc = forSuffix(sKey.substring(iBar+1));
+    return null==oEsc ? oDefault : oEsc;
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * Remove escaping suffix from a key
+   * @param sKey String Key as found between {# and }
+   * @return String Key without its escaping suffix
+   */
+  static String stripKey(String sKey) {
+    final int iBar = sKey.lastIndexOf('|');
+    if (iBar<=0 || null==forSuffix(sKey.substring(iBar+1))) return sKey;
+    return sKey.substring(0, iBar);
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * Append a value escaped for this context
+   * @param sValue CharSequence
+   * @param oOut StringBuilder
+   */
+  public void append(CharSequence sValue, StringBuilder oOut) {
+    try {
+      append(sValue, (Appendable) oOut);
+    } catch (IOException neverthrown) { }
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * Append a value escaped for this context
+   * Each escaped character is written directly to oOut.
+   * @param sValue CharSequence
+   * @param oOut Appendable
+   * @throws IOException if oOut throws it
+   */
+  public void append(CharSequence sValue, Appendable oOut) throws IOException {
+    final int iLen = sValue.length();
+    switch (this) {
+      case NONE:
+        oOut.append(sValue);
+        break;
+      case HTML:
+      case ATTRIBUTE:
+        final boolean bAttr = (this==ATTRIBUTE);
+        for (int c=0; c<iLen; c++) {
+          final char cChr = sValue.charAt(c);
+          switch (cChr) {
+            case '&':
+              oOut.append("&amp;");
+              break;
+            case '<':
+              oOut.append("&lt;");
+              break;
+            case '>':
+              oOut.append("&gt;");
+              break;
+            case '"':
+              if (bAttr) oOut.append("&quot;"); else oOut.append(cChr);
+              break;
+            case '\'':
+              if (bAttr) oOut.append("&#39;"); else oOut.append(cChr);
+              break;
+            default:
+              oOut.append(cChr);
+          }
+        } // next
+        break;
+      case URL:
+        for (int c=0; c<iLen; c++) {
+          final char cChr = sValue.charAt(c);
+          if ((cChr>='a' && cChr<='z') || (cChr>='A' && cChr<='Z') || (cChr>='0' && cChr<='9') ||
+              cChr=='-' || cChr=='_' || cChr=='.' || cChr=='~') {
+            oOut.append(cChr);
+          } else {
+            int iCodePoint = cChr;
+            if (Character.isHighSurrogate(cChr) && c+1<iLen && Character.isLowSurrogate(sValue.charAt(c+1)))
+              iCodePoint = Character.toCodePoint(cChr, sValue.charAt(++c));
+            else if (Character.isSurrogate(cChr))
+              iCodePoint = '?';
+            if (iCodePoint<0x80) {
+              appendHex(iCodePoint, oOut);
+            } else if (iCodePoint<0x800) {
+              appendHex(0xC0 | (iCodePoint>>6), oOut);
+              appendHex(0x80 | (iCodePoint & 0x3F), oOut);
+            } else if (iCodePoint<0x10000) {
+              appendHex(0xE0 | (iCodePoint>>12), oOut);
+              appendHex(0x80 | ((iCodePoint>>6) & 0x3F), oOut);
+              appendHex(0x80 | (iCodePoint & 0x3F), oOut);
+            } else {
+              appendHex(0xF0 | (iCodePoint>>18), oOut);
+              appendHex(0x80 | ((iCodePoint>>12) & 0x3F), oOut);
+              appendHex(0x80 | ((iCodePoint>>6) & 0x3F), oOut);
+              appendHex(0x80 | (iCodePoint & 0x3F), oOut);
+            }
+          }
+        } // next
+        break;
+    }
+  } // append
+
+  // ----------------------------------------------------------
+
+  private static void appendHex(int iByte, Appendable oOut) throws IOException {
+    oOut.append('%').append(HEX[(iByte>>4) & 0x0F]).append(HEX[iByte & 0x0F]);
+  }
+
+}
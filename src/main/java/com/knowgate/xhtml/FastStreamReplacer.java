@@ -16,10 +16,23 @@ import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.FileInputStream;
-
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.util.Calendar;
 import java.util.HashMap;
-
-import java.util.Date;
+import java.util.Map;
 
 /**
  * Search and Replace a set of substrings with another substrings.
@@ -27,27 +40,56 @@ import java.util.Date;
  * <p>It is primarily designed for mail merge document personalization routines, where a small
  * number of substrings have to be replaced at a master document with data retrieved from a list
  * or database.</p>
+ * <p>The static render() methods keep no state and do not modify the values map,
+ * so they can be called concurrently from any number of threads sharing the same
+ * MergeTemplate, each thread supplying its own output buffer.
+ * The instance replace() methods are also safe to be called concurrently,
+ * but lastReplacements() only reflects the last call made by any thread.</p>
+ * <p>Values may be given either as a Map or as a KeyResolver which is only asked for the keys found.
+ * The keys System.Date and Sistema.Fecha are built-in and always replaced by the current date,
+ * formatted once per day. The values Map passed to any method of this class is never modified.</p>
+ * <p>The render() methods escape values according to the suffix of each marker,
+ * {#<i>key</i>|html}, {#<i>key</i>|attr} or {#<i>key</i>|url}, see Escaping.
+ * So do replace(StringBuffer, HashMap) and replace(MergeTemplate, Map), but
+ * replace(InputStream, HashMap) and replace(String, HashMap) take the whole marker text as key.</p>
+ * <p>For replacing a set of arbitrary literal substrings, instead of {#<i>key</i>} markers,
+ * in a single pass see MultiLiteralReplacer.</p>
  * @author Sergio Montoro Ten
  * @version 2.1
  */
 
 public class FastStreamReplacer {
   int BufferSize;
-  int iReplacements;
-  StringBuffer oOutStream;
+  volatile int iReplacements;
+
+  /**
+   * Size of the buffer used by render(Reader, Map, Appendable)
+   */
+  public static final int STREAM_BUFFER_SIZE = 8192;
+
+  /**
+   * Maximum length of a key at the streaming render() methods, in characters or bytes
+   */
+  public static final int MAX_KEY_LENGTH = 256;
+
+  private static final int MAX_MAPPED_REGION = 64*1024*1024;
+
+  private static final int TEXT = 0;
+  private static final int BRACE = 1;
+  private static final int KEY = 2;
+
+  private static volatile Today oTodayCache = new Today();
 
   // ----------------------------------------------------------
 
   public FastStreamReplacer() {
     BufferSize = 32767;
-    oOutStream = new StringBuffer(BufferSize);
   }
 
   // ----------------------------------------------------------
 
   public FastStreamReplacer(int iBufferSize) {
     BufferSize = iBufferSize;
-    oOutStream = new StringBuffer(BufferSize);
   }
 
   // ----------------------------------------------------------
@@ -59,7 +101,9 @@ public class FastStreamReplacer {
    * Map keys must appear in stream text as {#<i>key</i>}<br>
    * For example: InputStream "Today is {#System.Date}" will be replaced with "Today is 2002-02-21 11:32:44"<br>
    * No wildcards are accepted.<br>
-   * Map keys must not contain {#&nbsp;} key markers.
+   * Map keys must not contain {#&nbsp;} key markers.<br>
+   * Each input byte is taken as a single character, use render(InputStream, Map, OutputStream, Charset)
+   * for input encoded with a multi-byte character set such as UTF-8.
    * @return String Replacements Result
    * @throws IOException
    */
@@ -69,18 +113,11 @@ public class FastStreamReplacer {
     int iChr;
     String sKey;
     Object oValue;
-
-    Date dtToday = new Date();
-    String sToday = String.valueOf(dtToday.getYear()+1900) + "-" + String.valueOf(dtToday.getMonth()+1) + "-" + String.valueOf(dtToday.getDate());
-
-    oMap.put("Sistema.Fecha",sToday);
-    oMap.put("System.Date",sToday);
-
-    iReplacements = 0;
+    int nReplacements = 0;
 
     BufferedInputStream oInStream = new BufferedInputStream(oFileInStream, BufferSize);
 
-    oOutStream.setLength(0);
+    StringBuilder oOutStream = new StringBuilder(BufferSize);
 
     do {
       iChr = oInStream.read();
@@ -96,7 +133,7 @@ public class FastStreamReplacer {
           if (35 == iChr) {
             // Se encontro el caracter '#'
 
-            iReplacements++;
+            nReplacements++;
 
             sKey = "";
 
@@ -109,10 +146,13 @@ public class FastStreamReplacer {
 
             } while (true);
 
-            if (oMap.containsKey(sKey))
-              oValue = oMap.get(sKey);
-            else
-            	oValue = "{#"+sKey+"}";
+            oValue = getSystemValue(sKey);
+            if (null==oValue) {
+              if (oMap.containsKey(sKey))
+                oValue = oMap.get(sKey);
+              else
+                oValue = "{#"+sKey+"}";
+            }
 
             if (null!=oValue)
               oOutStream.append(((String)oValue));
@@ -133,6 +173,8 @@ public class FastStreamReplacer {
 
     oInStream.close();
 
+    iReplacements = nReplacements;
+
     return oOutStream.toString();
   } // replace()
 
@@ -154,64 +196,41 @@ public class FastStreamReplacer {
   public String replace(StringBuffer oStrBuff, HashMap oMap)
     throws IOException, IndexOutOfBoundsException {
 
-    int iChr;
-    String sKey;
-    Object oValue;
-
-    Date dtToday = new Date();
-    String sToday = String.valueOf(dtToday.getYear()+1900) + "-" + String.valueOf(dtToday.getMonth()+1) + "-" + String.valueOf(dtToday.getDate());
-
-    oMap.put("Sistema.Fecha",sToday);
-    oMap.put("System.Date",sToday);
-
-    iReplacements = 0;
-
-    oOutStream.setLength(0);
-
-    int iAt = 0;
-    final int iLen = oStrBuff.length();
-
-    while (iAt<iLen) {
-      iChr = oStrBuff.charAt(iAt++);
+    return merge(MergeTemplate.compile(oStrBuff), resolver(oMap));
+  } // replace()
 
-        if (123 == iChr) {
-          // Se encontro el caracter '{'
-          iChr = oStrBuff.charAt(iAt++);
-          if (35 == iChr) {
-            // Se encontro el caracter '#'
-            iReplacements++;
+  // ----------------------------------------------------------
 
-            sKey = "";
+  /**
+   * Replace substrings from a previously compiled template.
+   * Use this method instead of replace(StringBuffer, HashMap) when the same
+   * text has to be merged with many different sets of values, for example once
+   * per recipient of a mail merge, so that the text is scanned only once.
+   * @param oTemplate MergeTemplate
+   * @param oMap Map with values to be replaced.<br>
+   * Each map key will be replaced by its value.<br>
+   * Map keys must appear in template text as {#<i>key</i>}<br>
+   * @return String Replacements Result
+   * @since 9.1
+   */
 
-            while (iAt<iLen) {
-              iChr = oStrBuff.charAt(iAt++);
-              if (125==iChr) break;
-              sKey += (char) iChr;
-            } // wend
+  public String replace(MergeTemplate oTemplate, Map<String,?> oMap) {
 
-            if (oMap.containsKey(sKey))
-              oValue = oMap.get(sKey);
-            else
-            	oValue = "{#"+sKey+"}";
+    return merge(oTemplate, resolver(oMap));
+  } // replace()
 
-            if (null!=oValue)
-              oOutStream.append(((String)oValue));
-          } // fi ('#')
+  // ----------------------------------------------------------
 
-          else {
-            oOutStream.append((char)123);
-            oOutStream.append((char)iChr);
-          }
+  private String merge(MergeTemplate oTemplate, KeyResolver oResolver) {
 
-        } // fi ('{')
+    StringBuilder oOut = new StringBuilder(oTemplate.getLiteralsLength()+(oTemplate.getSlotCount()*16));
 
-        else
-          oOutStream.append((char)iChr);
+    oTemplate.render(oResolver, oOut);
 
-    } // wend
+    iReplacements = oTemplate.getSlotCount();
 
-    return oOutStream.toString();
-  } // replace()
+    return oOut.toString();
+  } // merge
 
   // ----------------------------------------------------------
 
@@ -240,6 +259,450 @@ public class FastStreamReplacer {
 
   // ----------------------------------------------------------
 
+  /**
+   * <p>Render a compiled template into a caller supplied buffer</p>
+   * This method does not modify oMap nor any shared state, so it may be called
+   * concurrently by several threads rendering the same template.
+   * {#System.Date} and {#Sistema.Fecha} are replaced by the current date.
+   * @param oTemplate MergeTemplate
+   * @param oMap Map with values to be replaced
+   * @param oOut StringBuilder Buffer where the result will be appended
+   * @return int Number of markers replaced
+   * @since 9.1
+   */
+  public static int render(MergeTemplate oTemplate, Map<String,?> oMap, StringBuilder oOut) {
+    return oTemplate.render(resolver(oMap), oOut);
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * <p>Render a compiled template asking a resolver for the value of each key</p>
+   * The resolver is only called for keys that appear at the template, and only once per key.
+   * {#System.Date} and {#Sistema.Fecha} are replaced by the current date without calling the resolver.
+   * @param oTemplate MergeTemplate
+   * @param oResolver KeyResolver
+   * @param oOut StringBuilder Buffer where the result will be appended
+   * @return int Number of markers replaced
+   * @since 9.1
+   */
+  public static int render(MergeTemplate oTemplate, KeyResolver oResolver, StringBuilder oOut) {
+    return oTemplate.render(resolver(oResolver), oOut);
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * <p>Replace substrings from a text and append the result to a caller supplied buffer</p>
+   * This method does not modify oMap nor any shared state.
+   * @param sText CharSequence Text containing {#<i>key</i>} markers
+   * @param oMap Map with values to be replaced
+   * @param oOut StringBuilder Buffer where the result will be appended
+   * @return int Number of markers replaced
+   * @since 9.1
+   */
+  public static int render(CharSequence sText, Map<String,?> oMap, StringBuilder oOut) {
+    return render(MergeTemplate.compile(sText), oMap, oOut);
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * <p>Replace substrings while copying from a Reader into a Writer or any other Appendable</p>
+   * Input is read in chunks of STREAM_BUFFER_SIZE characters and replaced text is written
+   * as soon as it is available, so memory usage does not depend on the input size.
+   * Markers split across two chunks are recognized.<br>
+   * A marker whose key is longer than MAX_KEY_LENGTH characters is not considered a marker
+   * and is copied to the output as is.<br>
+   * Neither oIn nor oOut are closed by this method.
+   * This method does not modify oMap nor any shared state.
+   * @param oIn Reader Input text containing {#<i>key</i>} markers
+   * @param oMap Map with values to be replaced
+   * @param oOut Appendable Output
+   * @return int Number of markers replaced
+   * @throws IOException
+   * @since 9.1
+   */
+  public static int render(Reader oIn, Map<String,?> oMap, Appendable oOut) throws IOException {
+    return render(oIn, resolver(oMap), oOut);
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * <p>Replace substrings while copying from a Reader asking a resolver for the value of each key</p>
+   * Same as render(Reader, Map, Appendable) but the resolver is called each time that a marker is found.
+   * @param oIn Reader Input text containing {#<i>key</i>} markers
+   * @param oResolver KeyResolver
+   * @param oOut Appendable Output
+   * @return int Number of markers replaced
+   * @throws IOException
+   * @since 9.1
+   */
+  public static int render(Reader oIn, KeyResolver oResolver, Appendable oOut) throws IOException {
+    return render(oIn, oOut, resolver(oResolver));
+  }
+
+  // ----------------------------------------------------------
+
+  private static int render(Reader oIn, Appendable oOut, KeyResolver oResolver) throws IOException {
+
+    final char[] aBuffer = new char[STREAM_BUFFER_SIZE];
+    final CharBuffer oChars = CharBuffer.wrap(aBuffer);
+    final Writer oWrt = oOut instanceof Writer ? (Writer) oOut : null;
+    final StringBuilder oKey = new StringBuilder(32);
+    int iState = TEXT;
+    int nReplaced = 0;
+    int iRead;
+
+    while ((iRead = oIn.read(aBuffer, 0, STREAM_BUFFER_SIZE))>=0) {
+      int iAt = 0;
+      while (iAt<iRead) {
+        switch (iState) {
+          case TEXT:
+            int iBrace = iAt;
+            while (iBrace<iRead && aBuffer[iBrace]!='{') iBrace++;
+            if (iBrace>iAt) {
+              if (oWrt!=null)
+                oWrt.write(aBuffer, iAt, iBrace-iAt);
+              else
+                oOut.append(oChars, iAt, iBrace);
+            }
+            if (iBrace<iRead) iState = BRACE;
+            iAt = iBrace+1;
+            break;
+          case BRACE:
+            if (aBuffer[iAt]=='#') {
+              oKey.setLength(0);
+              iState = KEY;
+            } else {
+              oOut.append('{').append(aBuffer[iAt]);
+              iState = TEXT;
+            }
+            iAt++;
+            break;
+          case KEY:
+            final char cChr = aBuffer[iAt++];
+            if (cChr=='}') {
+              nReplaced += appendValue(oKey.toString(), oResolver, oOut);
+              iState = TEXT;
+            } else if (oKey.length()==MAX_KEY_LENGTH) {
+              oOut.append("{#").append(oKey).append(cChr);
+              iState = TEXT;
+            } else {
+              oKey.append(cChr);
+            }
+            break;
+        } // end switch
+      } // wend
+    } // wend
+
+    if (BRACE==iState)
+      oOut.append('{');
+    else if (KEY==iState)
+      nReplaced += appendValue(oKey.toString(), oResolver, oOut);
+
+    return nReplaced;
+  } // render
+
+  // ----------------------------------------------------------
+
+  private static int appendValue(String sKey, KeyResolver oResolver, Appendable oOut) throws IOException {
+    final Object oValue = oResolver.resolve(Escaping.stripKey(sKey));
+    if (null==oValue) {
+      oOut.append("{#").append(sKey).append('}');
+      return 0;
+    }
+    Escaping.forKey(sKey, Escaping.NONE).append(oValue.toString(), oOut);
+    return 1;
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * <p>Replace substrings while copying bytes from an InputStream into an OutputStream</p>
+   * Input is not decoded into characters. The {#, } marker bytes are searched directly
+   * at the encoded input and the bytes between markers are copied to the output in bulk.
+   * Only the keys are decoded and only the replacement values are encoded using oCharset.<br>
+   * oCharset must be a character set in which the bytes of '{', '#' and '}' cannot be
+   * part of a multi-byte character: UTF-8, US-ASCII, ISO-8859-*, windows-125* or EUC-*.<br>
+   * Neither oIn nor oOut are closed by this method.
+   * This method does not modify oMap nor any shared state.
+   * @param oIn InputStream Input text encoded as oCharset
+   * @param oMap Map with values to be replaced
+   * @param oOut OutputStream Output text encoded as oCharset
+   * @param oCharset Charset Input and output character set
+   * @return int Number of markers replaced
+   * @throws IOException
+   * @throws IllegalArgumentException If oCharset is not one of the supported character sets
+   * @since 9.1
+   */
+  public static int render(InputStream oIn, Map<String,?> oMap, OutputStream oOut, Charset oCharset)
+    throws IOException, IllegalArgumentException {
+    return render(oIn, resolver(oMap), oOut, oCharset);
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * <p>Replace substrings while copying bytes asking a resolver for the value of each key</p>
+   * Same as render(InputStream, Map, OutputStream, Charset) but the resolver
+   * is called each time that a marker is found.
+   * @param oIn InputStream Input text encoded as oCharset
+   * @param oResolver KeyResolver
+   * @param oOut OutputStream Output text encoded as oCharset
+   * @param oCharset Charset Input and output character set
+   * @return int Number of markers replaced
+   * @throws IOException
+   * @throws IllegalArgumentException If oCharset is not one of the supported character sets
+   * @since 9.1
+   */
+  public static int render(InputStream oIn, KeyResolver oResolver, OutputStream oOut, Charset oCharset)
+    throws IOException, IllegalArgumentException {
+    ByteMerger oMrg = new ByteMerger(resolver(oResolver), oOut, oCharset);
+    byte[] aBuffer = new byte[STREAM_BUFFER_SIZE];
+    int iRead;
+    while ((iRead = oIn.read(aBuffer, 0, STREAM_BUFFER_SIZE))>=0)
+      oMrg.write(ByteBuffer.wrap(aBuffer, 0, iRead));
+    return oMrg.finish();
+  } // render
+
+  // ----------------------------------------------------------
+
+  /**
+   * <p>Replace substrings from a text file mapped into memory</p>
+   * The file is mapped read only and scanned in place as with
+   * render(InputStream, Map, OutputStream, Charset) without copying it into the heap.
+   * @param sFilePath String Path to a file encoded as oCharset
+   * @param oMap Map with values to be replaced
+   * @param oOut OutputStream Output text encoded as oCharset
+   * @param oCharset Charset Input and output character set
+   * @return int Number of markers replaced
+   * @throws IOException
+   * @throws IllegalArgumentException If oCharset is not one of the supported character sets
+   * @since 9.1
+   */
+  public static int render(String sFilePath, Map<String,?> oMap, OutputStream oOut, Charset oCharset)
+    throws IOException, IllegalArgumentException {
+    return render(sFilePath, resolver(oMap), oOut, oCharset);
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * <p>Replace substrings from a text file mapped into memory asking a resolver for the value of each key</p>
+   * @param sFilePath String Path to a file encoded as oCharset
+   * @param oResolver KeyResolver
+   * @param oOut OutputStream Output text encoded as oCharset
+   * @param oCharset Charset Input and output character set
+   * @return int Number of markers replaced
+   * @throws IOException
+   * @throws IllegalArgumentException If oCharset is not one of the supported character sets
+   * @since 9.1
+   */
+  public static int render(String sFilePath, KeyResolver oResolver, OutputStream oOut, Charset oCharset)
+    throws IOException, IllegalArgumentException {
+    ByteMerger oMrg = new ByteMerger(resolver(oResolver), oOut, oCharset);
+    FileChannel oChnl = FileChannel.open(Paths.get(sFilePath), StandardOpenOption.READ);
+    try {
+      final long lSize = oChnl.size();
+      for (long lPos=0l; lPos<lSize; lPos+=MAX_MAPPED_REGION)
+        oMrg.write(oChnl.map(FileChannel.MapMode.READ_ONLY, lPos, Math.min((long) MAX_MAPPED_REGION, lSize-lPos)));
+    } finally {
+      oChnl.close();
+    }
+    return oMrg.finish();
+  } // render
+
+  // ----------------------------------------------------------
+
+  /**
+   * Byte oriented version of the marker state machine used by render(Reader, Map, Appendable)
+   */
+  private static class ByteMerger {
+    private final KeyResolver oResolver;
+    private final OutputStream oOut;
+    private final Charset oCharset;
+    private final byte[] aKey;
+    private byte[] aCopy;
+    private ValueEncoder oValueOut;
+    private int iKeyLen, iState, nReplaced;
+
+    ByteMerger(KeyResolver oResolver, OutputStream oOut, Charset oCharset) throws IllegalArgumentException {
+      final String sName = oCharset.name().toUpperCase();
+      if (!sName.equals("UTF-8") && !sName.equals("US-ASCII") && !sName.startsWith("ISO-8859-") &&
+          !sName.startsWith("WINDOWS-125") && !sName.startsWith("EUC-"))
+        throw new IllegalArgumentException("FastStreamReplacer.render() character set "+oCharset.name()+" is not supported");
+      this.oResolver = oResolver;
+      this.oOut = oOut;
+      this.oCharset = oCharset;
+      this.aKey = new byte[MAX_KEY_LENGTH];
+      iKeyLen = nReplaced = 0;
+      iState = TEXT;
+    }
+
+    void write(ByteBuffer oBuf) throws IOException {
+      while (oBuf.hasRemaining()) {
+        byte bByte;
+        switch (iState) {
+          case TEXT:
+            final int iLimit = oBuf.limit();
+            int iBrace = oBuf.position();
+            while (iBrace<iLimit && oBuf.get(iBrace)!='{') iBrace++;
+            copy(oBuf, iBrace);
+            if (iBrace<iLimit) {
+              oBuf.get();
+              iState = BRACE;
+            }
+            break;
+          case BRACE:
+            bByte = oBuf.get();
+            if (bByte=='#') {
+              iKeyLen = 0;
+              iState = KEY;
+            } else {
+              oOut.write('{');
+              oOut.write(bByte);
+              iState = TEXT;
+            }
+            break;
+          case KEY:
+            bByte = oBuf.get();
+            if (bByte=='}') {
+              writeValue();
+              iState = TEXT;
+            } else if (iKeyLen==MAX_KEY_LENGTH) {
+              oOut.write('{');
+              oOut.write('#');
+              oOut.write(aKey, 0, iKeyLen);
+              oOut.write(bByte);
+              iState = TEXT;
+            } else {
+              aKey[iKeyLen++] = bByte;
+            }
+            break;
+        } // end switch
+      } // wend
+    } // write
+
+    int finish() throws IOException {
+      if (BRACE==iState)
+        oOut.write('{');
+      else if (KEY==iState)
+        writeValue();
+      iState = TEXT;
+      return nReplaced;
+    }
+
+    private void copy(ByteBuffer oBuf, int iEnd) throws IOException {
+      final int iStart = oBuf.position();
+      if (iEnd==iStart) return;
+      if (oBuf.hasArray()) {
+        oOut.write(oBuf.array(), oBuf.arrayOffset()+iStart, iEnd-iStart);
+        oBuf.position(iEnd);
+      } else {
+        if (null==aCopy) aCopy = new byte[STREAM_BUFFER_SIZE];
+        while (oBuf.position()<iEnd) {
+          final int iLen = Math.min(aCopy.length, iEnd-oBuf.position());
+          oBuf.get(aCopy, 0, iLen);
+          oOut.write(aCopy, 0, iLen);
+        }
+      }
+    } // copy
+
+    private void writeValue() throws IOException {
+      final String sKey = new String(aKey, 0, iKeyLen, oCharset);
+      final Object oValue = oResolver.resolve(Escaping.stripKey(sKey));
+      if (null==oValue) {
+        oOut.write('{');
+        oOut.write('#');
+        oOut.write(aKey, 0, iKeyLen);
+        oOut.write('}');
+      } else {
+        nReplaced++;
+        if (null==oValueOut) oValueOut = new ValueEncoder(oOut, oCharset);
+        Escaping.forKey(sKey, Escaping.NONE).append(oValue.toString(), oValueOut);
+        oValueOut.finish();
+      }
+    } // writeValue
+  } // ByteMerger
+
+  // ----------------------------------------------------------
+
+  /**
+   * Appendable which encodes the characters appended to it into an OutputStream
+   * through a fixed size buffer, so that escaped values are written without
+   * building an intermediate String or byte array for each of them.
+   * Characters which cannot be encoded are replaced as String.getBytes() does.
+   */
+  private static final class ValueEncoder implements Appendable {
+    private final OutputStream oOut;
+    private final CharsetEncoder oEncoder;
+    private final CharBuffer oChars;
+    private final ByteBuffer oBytes;
+
+    ValueEncoder(OutputStream oOut, Charset oCharset) {
+      this.oOut = oOut;
+      this.oEncoder = oCharset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+      this.oChars = CharBuffer.allocate(256);
+      this.oBytes = ByteBuffer.allocate((int) (256*oEncoder.maxBytesPerChar())+16);
+    }
+
+    public Appendable append(char cChr) throws IOException {
+      if (!oChars.hasRemaining()) drain(false);
+      oChars.put(cChr);
+      return this;
+    }
+
+    public Appendable append(CharSequence sChars) throws IOException {
+      if (null==sChars) sChars = "null";
+      return append(sChars, 0, sChars.length());
+    }
+
+    public Appendable append(CharSequence sChars, int iStart, int iEnd) throws IOException {
+      if (null==sChars) sChars = "null";
+      for (int c=iStart; c<iEnd; c++) {
+        if (!oChars.hasRemaining()) drain(false);
+        oChars.put(sChars.charAt(c));
+      }
+      return this;
+    }
+
+    /**
+     * Write the characters still buffered and get ready for the next value
+     */
+    void finish() throws IOException {
+      drain(true);
+      oEncoder.reset();
+    }
+
+    private void drain(boolean bEndOfInput) throws IOException {
+      CoderResult oResult;
+      oChars.flip();
+      do {
+        oResult = oEncoder.encode(oChars, oBytes, bEndOfInput);
+        writeBytes();
+      } while (oResult.isOverflow());
+      if (bEndOfInput) {
+        do {
+          oResult = oEncoder.flush(oBytes);
+          writeBytes();
+        } while (oResult.isOverflow());
+      }
+      // An incomplete surrogate pair is kept for the next chunk
+      oChars.compact();
+    }
+
+    private void writeBytes() throws IOException {
+      if (oBytes.position()>0) {
+        oOut.write(oBytes.array(), 0, oBytes.position());
+        oBytes.clear();
+      }
+    }
+  } // ValueEncoder
+
+  // ----------------------------------------------------------
+
   /**
    * Number of replacements done in last call to replace() method.
    * @return int
@@ -250,6 +713,90 @@ public class FastStreamReplacer {
 
   // ----------------------------------------------------------
 
+  /**
+   * @return Value of a built-in key or <b>null</b> if sKey is not a built-in key
+   */
+  private static String getSystemValue(String sKey) {
+    if (sKey.equals("System.Date") || sKey.equals("Sistema.Fecha"))
+      return today();
+    else
+      return null;
+  }
+
+  // ----------------------------------------------------------
+
+  private static KeyResolver resolver(final Map<?,?> oMap) {
+    return new KeyResolver() {
+      public Object resolve(String sKey) {
+        Object oValue = getSystemValue(sKey);
+        if (null==oValue && oMap.containsKey(sKey)) {
+          oValue = oMap.get(sKey);
+          if (null==oValue) oValue = "";
+        }
+        return oValue;
+      }
+    };
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * <p>Wrap a resolver adding the built-in keys to it</p>
+   * The returned resolver gives the current date for {#System.Date} and {#Sistema.Fecha}
+   * and delegates any other key to oResolver.
+   * @param oResolver KeyResolver
+   * @return KeyResolver
+   * @since 9.1
+   */
+  public static KeyResolver withBuiltInKeys(KeyResolver oResolver) {
+    return resolver(oResolver);
+  }
+
+  // ----------------------------------------------------------
+
+  private static KeyResolver resolver(final KeyResolver oResolver) {
+    return new KeyResolver() {
+      public Object resolve(String sKey) {
+        Object oValue = getSystemValue(sKey);
+        return null==oValue ? oResolver.resolve(sKey) : oValue;
+      }
+    };
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * The current date is formatted once and then reused until midnight
+   */
+  private static String today() {
+    Today oToday = oTodayCache;
+    if (System.currentTimeMillis()>=oToday.lUntil) {
+      oToday = new Today();
+      oTodayCache = oToday;
+    }
+    return oToday.sDate;
+  }
+
+  // ----------------------------------------------------------
+
+  private static final class Today {
+    final String sDate;
+    final long lUntil;
+
+    Today() {
+      Calendar oCal = Calendar.getInstance();
+      sDate = String.valueOf(oCal.get(Calendar.YEAR)) + "-" + String.valueOf(oCal.get(Calendar.MONTH)+1) + "-" + String.valueOf(oCal.get(Calendar.DAY_OF_MONTH));
+      oCal.set(Calendar.HOUR_OF_DAY, 0);
+      oCal.set(Calendar.MINUTE, 0);
+      oCal.set(Calendar.SECOND, 0);
+      oCal.set(Calendar.MILLISECOND, 0);
+      oCal.add(Calendar.DATE, 1);
+      lUntil = oCal.getTimeInMillis();
+    }
+  } // Today
+
+  // ----------------------------------------------------------
+
   /**
    * <p>Create a HashMap for a couple of String Arrays</p>
    * This method is just a convenient shortcut for creating input HashMap for
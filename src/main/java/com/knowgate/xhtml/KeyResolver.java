@@ -0,0 +1,35 @@
+package com.knowgate.xhtml;
+
+/**
+ * © Copyright 2016 the original author.
+ * This file is licensed under the Apache License version 2.0.
+ * You may not use this file except in compliance with the license.
+ * You may obtain a copy of the License at:
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.
+ */
+
+/**
+ * <p>Supply the value of {#<i>key</i>} markers on demand</p>
+ * A KeyResolver is an alternative to filling a Map with every possible value
+ * before merging a document. FastStreamReplacer and MergeTemplate call it only
+ * for the keys which actually appear at the text being merged, and
+ * MergeTemplate calls it at most once per distinct key and render.
+ * @author Sergio Montoro Ten
+ * @version 9.1
+ * @since 9.1
+ */
+public interface KeyResolver {
+
+  /**
+   * @param sKey String Key as found between {# and }
+   * @return Object Value whose toString() will replace the marker,
+   * an empty string for removing the marker or <b>null</b> if the key is unknown,
+   * in which case the marker is left as is.
+   */
+  Object resolve(String sKey);
+
+}
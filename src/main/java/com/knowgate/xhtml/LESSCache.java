@@ -15,17 +15,48 @@ package com.knowgate.xhtml;
 import java.io.File;
 import java.io.IOException;
 
-import java.util.WeakHashMap;
-
 import org.lesscss.LessCompiler;
 import org.lesscss.LessException;
 
 /**
- * LESS CSS caching using in-memory WeakHashMap
+ * LESS CSS caching using an in-memory BoundedCache.
+ * The cache is bounded by the estimated size in bytes of the compiled CSS
+ * and its hit, miss, eviction and compilation time statistics are available
+ * from getStats().
  * @author Sergio Montoro Ten
+ * @version 9.1
  * @see <a href="http://lesscss.org/">lesscss.org</a>
  */
-public class LESSCache extends WeakHashMap<String, String> {
+public class LESSCache extends BoundedCache<String, String> {
+
+	/**
+	 * Default maximum estimated size of the cached CSS in bytes
+	 */
+	public static final long DEFAULT_MAX_BYTES = 4l*1024l*1024l;
+
+	private static final Weigher<String,String> CSS_SIZE = new Weigher<String,String>() {
+		public long weigh(String sFilePath, String sCSS) {
+			return 2l*sCSS.length();
+		}
+	};
+
+	/**
+	 * Create LRU cache of {@link #DEFAULT_MAX_BYTES} bytes
+	 */
+	public LESSCache() {
+		this(DEFAULT_MAX_BYTES, EvictionPolicy.LRU, false);
+	}
+
+	/**
+	 * @param lMaxBytes long Maximum estimated size of the cached CSS in bytes
+	 * @param ePolicy EvictionPolicy LRU or LFU
+	 * @param bSoftValues boolean If <b>true</b> cached CSS may also be garbage collected when memory runs low
+	 * @throws IllegalArgumentException if lMaxBytes is less than 1
+	 * @since 9.1
+	 */
+	public LESSCache(long lMaxBytes, EvictionPolicy ePolicy, boolean bSoftValues) throws IllegalArgumentException {
+		super(lMaxBytes, CSS_SIZE, ePolicy, bSoftValues);
+	}
 
 	/**
 	 * Convert a LESS CSS file into plain CSS
@@ -36,17 +67,17 @@ public class LESSCache extends WeakHashMap<String, String> {
 	 */
 	public String render(File lcssFile) throws LessException, IOException {
 		final String sFilePath = lcssFile.getAbsolutePath();
-		String sRetCSS = null;
-		if (containsKey(sFilePath)) {
-			sRetCSS = get(sFilePath);
-		} else {
+		String sRetCSS = get(sFilePath);
+		if (null==sRetCSS) {
 			LessCompiler oLssC = null;
+			final long lStart = System.nanoTime();
 			try {
 				oLssC = new LessCompiler();
 				oLssC.setCompress(true);
 				sRetCSS = oLssC.compile(lcssFile);
 				put(sFilePath, sRetCSS);
 			} finally {
+				recordLoad(System.nanoTime()-lStart, sRetCSS!=null);
 				if (oLssC != null)
 					oLssC.close();
 			}
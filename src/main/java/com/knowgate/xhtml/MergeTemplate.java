@@ -0,0 +1,270 @@
+package com.knowgate.xhtml;
+
+/**
+ * © Copyright 2016 the original author.
+ * This file is licensed under the Apache License version 2.0.
+ * You may not use this file except in compliance with the license.
+ * You may obtain a copy of the License at:
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>Mail merge template compiled for repeated rendering</p>
+ * The template text is scanned once for {#<i>key</i>} markers and split into
+ * literal segments and key slots. Rendering the template for a set of values
+ * just appends the precomputed segments and the value of each slot, without
+ * scanning the template text again.<br>
+ * Markers are recognized with the same rules as FastStreamReplacer:
+ * a key which is not present at the values map is written back as {#<i>key</i>}
+ * and a key whose value is <b>null</b> is written as an empty string.<br>
+ * Each marker may declare how its value must be escaped, see Escaping.<br>
+ * Instances of this class are immutable and the render methods keep no state
+ * between calls, so a single template can be rendered concurrently by any
+ * number of threads, each one writing into its own output buffer.
+ * @author Sergio Montoro Ten
+ * @version 9.1
+ * @since 9.1
+ */
+public final class MergeTemplate {
+
+  private final String[] aLiterals;
+  private final String[] aKeys;
+  private final String[] aMarkers;
+  private final Escaping[] aEscaping;
+  // Index of the key of each slot at the list of distinct keys
+  private final int[] aKeyIndex;
+  private final int nDistinctKeys;
+  private final int iLiteralsLength;
+
+  // ----------------------------------------------------------
+
+  private MergeTemplate(String[] aLiterals, String[] aRawKeys, Escaping oDefault) {
+    this.aLiterals = aLiterals;
+    this.aKeys = new String[aRawKeys.length];
+    this.aMarkers = new String[aRawKeys.length];
+    this.aEscaping = new Escaping[aRawKeys.length];
+    this.aKeyIndex = new int[aRawKeys.length];
+    HashMap<String,Integer> oDistinct = new HashMap<String,Integer>(aRawKeys.length*2+1);
+    int iLength = 0;
+    for (int l=0; l<aLiterals.length; l++)
+      iLength += aLiterals[l].length();
+    for (int k=0; k<aRawKeys.length; k++) {
+      aMarkers[k] = "{#"+aRawKeys[k]+"}";
+      aKeys[k] = Escaping.stripKey(aRawKeys[k]);
+      aEscaping[k] = Escaping.forKey(aRawKeys[k], oDefault);
+      Integer oIndex = oDistinct.get(aKeys[k]);
+      if (null==oIndex) {
+        oIndex = Integer.valueOf(oDistinct.size());
+        oDistinct.put(aKeys[k], oIndex);
+      }
+      aKeyIndex[k] = oIndex.intValue();
+    }
+    this.nDistinctKeys = oDistinct.size();
+    this.iLiteralsLength = iLength;
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * <p>Parse template text</p>
+   * Values are not escaped unless an escaping suffix is given at a marker,
+   * like {#<i>key</i>|html}, {#<i>key</i>|attr} or {#<i>key</i>|url}.
+   * @param sTemplate CharSequence Template text containing {#<i>key</i>} markers
+   * @return MergeTemplate
+   * @throws NullPointerException if sTemplate is <b>null</b>
+   */
+  public static MergeTemplate compile(CharSequence sTemplate) throws NullPointerException {
+    return compile(sTemplate, Escaping.NONE);
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * <p>Parse template text using a default escaping for markers without an escaping suffix</p>
+   * For example, an HTML newsletter may be compiled with Escaping.HTML and then
+   * use {#<i>key</i>|none} for the few values that contain HTML markup.
+   * @param sTemplate CharSequence Template text containing {#<i>key</i>} markers
+   * @param oDefault Escaping
+   * @return MergeTemplate
+   * @throws NullPointerException if sTemplate or oDefault are <b>null</b>
+   * @since 9.1
+   */
+  public static MergeTemplate compile(CharSequence sTemplate, Escaping oDefault) throws NullPointerException {
+
+    if (null==oDefault) throw new NullPointerException("MergeTemplate.compile() default escaping may not be null");
+    if (null==sTemplate) throw new NullPointerException("MergeTemplate.compile() template text may not be null");
+
+    final int iLen = sTemplate.length();
+    ArrayList<String> oLiterals = new ArrayList<String>();
+    ArrayList<String> oKeys = new ArrayList<String>();
+    StringBuilder oLiteral = new StringBuilder(Math.min(iLen, 4096));
+
+    int iAt = 0;
+    while (iAt<iLen) {
+      char cChr = sTemplate.charAt(iAt++);
+      if ('{'==cChr && iAt<iLen) {
+        cChr = sTemplate.charAt(iAt++);
+        if ('#'==cChr) {
+          int iEnd = iAt;
+          while (iEnd<iLen && sTemplate.charAt(iEnd)!='}') iEnd++;
+          oLiterals.add(oLiteral.toString());
+          oLiteral.setLength(0);
+          oKeys.add(sTemplate.subSequence(iAt, iEnd).toString());
+          iAt = iEnd+1;
+        } else {
+          oLiteral.append('{').append(cChr);
+        }
+      } else {
+        oLiteral.append(cChr);
+      }
+    } // wend
+    oLiterals.add(oLiteral.toString());
+
+    return new MergeTemplate(oLiterals.toArray(new String[oLiterals.size()]), oKeys.toArray(new String[oKeys.size()]), oDefault);
+  } // compile
+
+  // ----------------------------------------------------------
+
+  /**
+   * @return int Number of {#<i>key</i>} markers found at the template
+   */
+  public int getSlotCount() {
+    return aKeys.length;
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * @param iSlot int [0..getSlotCount()-1]
+   * @return String Key of the given slot, without its escaping suffix
+   */
+  public String getKey(int iSlot) {
+    return aKeys[iSlot];
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * @param iSlot int [0..getSlotCount()-1]
+   * @return Escaping Escaping applied to the value of the given slot
+   */
+  public Escaping getEscaping(int iSlot) {
+    return aEscaping[iSlot];
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * @param iSegment int [0..getSlotCount()]
+   * @return String Literal text before the slot with the same index or, for the last segment, after the last slot
+   */
+  public String getLiteral(int iSegment) {
+    return aLiterals[iSegment];
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * @param iSlot int [0..getSlotCount()-1]
+   * @return String Marker of the given slot as it appears at the template text, including its escaping suffix
+   */
+  public String getMarker(int iSlot) {
+    return aMarkers[iSlot];
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * @return int Length of the template text without its markers
+   */
+  public int getLiteralsLength() {
+    return iLiteralsLength;
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * <p>Render template</p>
+   * @param oValues Map with the value for each key
+   * @return String
+   */
+  public String render(Map<String,?> oValues) {
+    StringBuilder oOut = new StringBuilder(iLiteralsLength+(aKeys.length*16));
+    render(oValues, oOut);
+    return oOut.toString();
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * <p>Render template appending the result to a given buffer</p>
+   * @param oValues Map with the value for each key
+   * @param oOut StringBuilder Output buffer
+   * @return int Number of markers replaced, markers whose key is not at oValues are not counted
+   */
+  public int render(Map<String,?> oValues, StringBuilder oOut) {
+    final int nSlots = aKeys.length;
+    int nReplaced = 0;
+    oOut.ensureCapacity(oOut.length()+iLiteralsLength);
+    for (int s=0; s<nSlots; s++) {
+      oOut.append(aLiterals[s]);
+      final Object oValue = oValues.get(aKeys[s]);
+      if (oValue!=null) {
+        aEscaping[s].append(oValue.toString(), oOut);
+        nReplaced++;
+      } else if (oValues.containsKey(aKeys[s])) {
+        nReplaced++;
+      } else {
+        oOut.append(aMarkers[s]);
+      }
+    } // next
+    oOut.append(aLiterals[nSlots]);
+    return nReplaced;
+  } // render
+
+  // ----------------------------------------------------------
+
+  /**
+   * <p>Render template asking a resolver for the value of each key</p>
+   * The resolver is called only once for each distinct key of the template,
+   * even if the key appears several times, and it is not called at all for
+   * keys that do not appear at the template.
+   * @param oResolver KeyResolver
+   * @param oOut StringBuilder Output buffer
+   * @return int Number of markers replaced, markers for which the resolver returned <b>null</b> are not counted
+   */
+  public int render(KeyResolver oResolver, StringBuilder oOut) {
+    final int nSlots = aKeys.length;
+    final Object[] aValues = new Object[nDistinctKeys];
+    final boolean[] aResolved = new boolean[nDistinctKeys];
+    int nReplaced = 0;
+    oOut.ensureCapacity(oOut.length()+iLiteralsLength);
+    for (int s=0; s<nSlots; s++) {
+      oOut.append(aLiterals[s]);
+      final int k = aKeyIndex[s];
+      if (!aResolved[k]) {
+        aValues[k] = oResolver.resolve(aKeys[s]);
+        aResolved[k] = true;
+      }
+      if (aValues[k]!=null) {
+        aEscaping[s].append(aValues[k].toString(), oOut);
+        nReplaced++;
+      } else {
+        oOut.append(aMarkers[s]);
+      }
+    } // next
+    oOut.append(aLiterals[nSlots]);
+    return nReplaced;
+  } // render
+
+  // ----------------------------------------------------------
+
+} // MergeTemplate
@@ -0,0 +1,215 @@
+package com.knowgate.xhtml;
+
+/**
+ * © Copyright 2016 the original author.
+ * This file is licensed under the Apache License version 2.0.
+ * You may not use this file except in compliance with the license.
+ * You may obtain a copy of the License at:
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * <p>Replace any number of literal substrings in a single pass</p>
+ * The search strings are compiled once into an Aho-Corasick automaton, so the
+ * time taken for replacing them depends on the length of the text but not on how
+ * many different search strings there are.<br>
+ * Search strings are literal, no wildcards nor regular expressions are accepted.
+ * If several search strings match at overlapping positions the one which starts
+ * first is replaced, and from those which start at the same position the longest one.
+ * Replaced text is not searched again.<br>
+ * Instances of this class are immutable and may be shared by several threads.
+ * @author Sergio Montoro Ten
+ * @version 9.1
+ * @since 9.1
+ */
+public final class MultiLiteralReplacer {
+
+  private static final char[] NO_CHARS = new char[0];
+  private static final int[] NO_STATES = new int[0];
+
+  // Goto function, for each state its sorted transition characters and target states
+  private final char[][] aGotoChars;
+  private final int[][] aGotoStates;
+  // Failure function
+  private final int[] aFail;
+  // Length of the path from the root to each state
+  private final int[] aDepth;
+  // Length and index of the longest search string ending at each state, 0 and -1 if none
+  private final int[] aMatchLen;
+  private final int[] aMatchIdx;
+  private final String[] aReplacements;
+
+  // ----------------------------------------------------------
+
+  /**
+   * @param oReplacements Map from each search string to its replacement, a <b>null</b> replacement deletes the search string
+   * @throws IllegalArgumentException if any of the search strings is empty
+   */
+  public MultiLiteralReplacer(Map<String,String> oReplacements) throws IllegalArgumentException {
+
+    final int nLiterals = oReplacements.size();
+    aReplacements = new String[nLiterals];
+
+    ArrayList<StringBuilder> oChars = new ArrayList<StringBuilder>();
+    ArrayList<ArrayList<Integer>> oTargets = new ArrayList<ArrayList<Integer>>();
+    ArrayList<Integer> oDepths = new ArrayList<Integer>();
+    ArrayList<Integer> oMatches = new ArrayList<Integer>();
+    oChars.add(new StringBuilder());
+    oTargets.add(new ArrayList<Integer>());
+    oDepths.add(0);
+    oMatches.add(-1);
+
+    // Build the trie of search strings
+    Iterator<Map.Entry<String,String>> oIter = oReplacements.entrySet().iterator();
+    for (int l=0; oIter.hasNext(); l++) {
+      Map.Entry<String,String> oEntry = oIter.next();
+      final String sLiteral = oEntry.getKey();
+      if (sLiteral==null || sLiteral.length()==0)
+        throw new IllegalArgumentException("MultiLiteralReplacer search strings may not be empty");
+      aReplacements[l] = oEntry.getValue()==null ? "" : oEntry.getValue();
+      int iState = 0;
+      for (int c=0; c<sLiteral.length(); c++) {
+        final char cChr = sLiteral.charAt(c);
+        final int iPos = oChars.get(iState).indexOf(String.valueOf(cChr));
+        if (iPos>=0) {
+          iState = oTargets.get(iState).get(iPos);
+        } else {
+          final int iNew = oChars.size();
+          oChars.get(iState).append(cChr);
+          oTargets.get(iState).add(iNew);
+          oChars.add(new StringBuilder());
+          oTargets.add(new ArrayList<Integer>());
+          oDepths.add(c+1);
+          oMatches.add(-1);
+          iState = iNew;
+        }
+      } // next
+      oMatches.set(iState, l);
+    } // next
+
+    final int nStates = oChars.size();
+    aGotoChars = new char[nStates][];
+    aGotoStates = new int[nStates][];
+    aFail = new int[nStates];
+    aDepth = new int[nStates];
+    aMatchLen = new int[nStates];
+    aMatchIdx = new int[nStates];
+
+    for (int s=0; s<nStates; s++) {
+      final StringBuilder oTrans = oChars.get(s);
+      final int nTrans = oTrans.length();
+      aDepth[s] = oDepths.get(s);
+      aMatchIdx[s] = oMatches.get(s);
+      aMatchLen[s] = aMatchIdx[s]<0 ? 0 : aDepth[s];
+      if (nTrans==0) {
+        aGotoChars[s] = NO_CHARS;
+        aGotoStates[s] = NO_STATES;
+      } else {
+        // Sort transitions by character so that they can be binary searched
+        long[] aPairs = new long[nTrans];
+        for (int t=0; t<nTrans; t++)
+          aPairs[t] = (((long) oTrans.charAt(t))<<32) | oTargets.get(s).get(t).longValue();
+        Arrays.sort(aPairs);
+        aGotoChars[s] = new char[nTrans];
+        aGotoStates[s] = new int[nTrans];
+        for (int t=0; t<nTrans; t++) {
+          aGotoChars[s][t] = (char) (aPairs[t]>>>32);
+          aGotoStates[s][t] = (int) (aPairs[t] & 0xffffffffl);
+        }
+      }
+    } // next
+
+    // Compute failure function breadth first
+    int[] aQueue = new int[nStates];
+    int iHead = 0, iTail = 0;
+    for (int t=0; t<aGotoStates[0].length; t++) {
+      aFail[aGotoStates[0][t]] = 0;
+      aQueue[iTail++] = aGotoStates[0][t];
+    }
+    while (iHead<iTail) {
+      final int iState = aQueue[iHead++];
+      for (int t=0; t<aGotoStates[iState].length; t++) {
+        final int iChild = aGotoStates[iState][t];
+        aFail[iChild] = next(aFail[iState], aGotoChars[iState][t]);
+        // A state without its own match inherits the longest match of its failure state
+        if (aMatchIdx[iChild]<0) {
+          aMatchIdx[iChild] = aMatchIdx[aFail[iChild]];
+          aMatchLen[iChild] = aMatchLen[aFail[iChild]];
+        }
+        aQueue[iTail++] = iChild;
+      } // next
+    } // wend
+  } // MultiLiteralReplacer
+
+  // ----------------------------------------------------------
+
+  private int next(int iState, char cChr) {
+    while (true) {
+      final int iPos = Arrays.binarySearch(aGotoChars[iState], cChr);
+      if (iPos>=0) return aGotoStates[iState][iPos];
+      if (0==iState) return 0;
+      iState = aFail[iState];
+    }
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * @param sText CharSequence Text where search strings will be replaced
+   * @return String
+   */
+  public String replace(CharSequence sText) {
+    StringBuilder oOut = new StringBuilder(sText.length()+16);
+    replace(sText, oOut);
+    return oOut.toString();
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * @param sText CharSequence Text where search strings will be replaced
+   * @param oOut StringBuilder Buffer where the result will be appended
+   * @return int Number of replacements done
+   */
+  public int replace(CharSequence sText, StringBuilder oOut) {
+    final int iLen = sText.length();
+    int iState = 0, iAt = 0, iCopied = 0, nReplaced = 0;
+    int iCandStart = -1, iCandEnd = -1, iCandIdx = -1;
+
+    while (iAt<iLen || iCandStart>=0) {
+      if (iAt<iLen) {
+        iState = next(iState, sText.charAt(iAt++));
+        if (aMatchIdx[iState]>=0) {
+          final int iStart = iAt - aMatchLen[iState];
+          if (iCandStart<0 || iStart<=iCandStart) {
+            iCandStart = iStart;
+            iCandEnd = iAt;
+            iCandIdx = aMatchIdx[iState];
+          }
+        }
+        // Keep on scanning while a longer match starting at or before the candidate is still possible
+        if (iCandStart<0 || iAt-aDepth[iState]<=iCandStart) continue;
+      }
+      oOut.append(sText, iCopied, iCandStart).append(aReplacements[iCandIdx]);
+      nReplaced++;
+      iCopied = iAt = iCandEnd;
+      iState = 0;
+      iCandStart = iCandEnd = iCandIdx = -1;
+    } // wend
+
+    oOut.append(sText, iCopied, iLen);
+    return nReplaced;
+  } // replace
+
+  // ----------------------------------------------------------
+
+} // MultiLiteralReplacer
@@ -0,0 +1,158 @@
+package com.knowgate.xhtml;
+
+/**
+ * © Copyright 2016 the original author.
+ * This file is licensed under the Apache License version 2.0.
+ * You may not use this file except in compliance with the license.
+ * You may obtain a copy of the License at:
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.
+ */
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.URIResolver;
+
+/**
+ * <p>Configured TransformerFactory shared by StylesheetCache</p>
+ * The implementation class is looked up once, so compiling a stylesheet does not
+ * go through the service loader lookup done by TransformerFactory.newInstance().
+ * TransformerFactory instances are not thread safe, so each thread gets its own
+ * factory instance, created with this configuration the first time that the thread uses it.
+ * @author Sergio Montoro Ten
+ * @version 9.1
+ * @since 9.1
+ */
+final class SharedTransformerFactory {
+
+  private final String sClassName;
+  private final ClassLoader oLoader;
+  private final Map<String,Boolean> oFeatures;
+  private final Map<String,Object> oAttributes;
+  private final URIResolver oResolver;
+  private final ThreadLocal<TransformerFactory> oFactories;
+
+  // ----------------------------------------------------------
+
+  /**
+   * Use the default implementation without any feature or attribute
+   */
+  SharedTransformerFactory() {
+    TransformerFactory oDefault = TransformerFactory.newInstance();
+    this.sClassName = oDefault.getClass().getName();
+    this.oLoader = oDefault.getClass().getClassLoader();
+    this.oFeatures = Collections.emptyMap();
+    this.oAttributes = Collections.emptyMap();
+    this.oResolver = null;
+    this.oFactories = new ThreadLocal<TransformerFactory>();
+    oFactories.set(oDefault);
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * @param sClassName String TransformerFactory implementation class name or <b>null</b> for the default one
+   * @param oFeatures Map Features set at each factory, or <b>null</b>
+   * @param oAttributes Map Attributes set at each factory, or <b>null</b>
+   * @param oResolver URIResolver used while compiling stylesheets, or <b>null</b>
+   * @throws TransformerConfigurationException if the class cannot be instantiated or a feature or attribute is not supported
+   */
+  SharedTransformerFactory(String sClassName, Map<String,Boolean> oFeatures, Map<String,Object> oAttributes, URIResolver oResolver)
+    throws TransformerConfigurationException {
+    TransformerFactory oFirst;
+    try {
+      oFirst = null==sClassName ? TransformerFactory.newInstance() : TransformerFactory.newInstance(sClassName, null);
+    } catch (Error xcpt) {
+      // TransformerFactoryConfigurationError
+      throw new TransformerConfigurationException(xcpt.getMessage(), xcpt);
+    }
+    this.sClassName = oFirst.getClass().getName();
+    this.oLoader = oFirst.getClass().getClassLoader();
+    this.oFeatures = null==oFeatures ? Collections.<String,Boolean>emptyMap() : new LinkedHashMap<String,Boolean>(oFeatures);
+    this.oAttributes = null==oAttributes ? Collections.<String,Object>emptyMap() : new LinkedHashMap<String,Object>(oAttributes);
+    this.oResolver = oResolver;
+    this.oFactories = new ThreadLocal<TransformerFactory>();
+    configure(oFirst);
+    oFactories.set(oFirst);
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * @return String TransformerFactory implementation class name
+   */
+  String getClassName() {
+    return sClassName;
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * @return Map Attributes set at each factory
+   */
+  Map<String,Object> getAttributes() {
+    return Collections.unmodifiableMap(oAttributes);
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * @return boolean <b>true</b> if any feature, attribute or URIResolver is set at the factories
+   */
+  boolean isConfigured() {
+    return !oFeatures.isEmpty() || !oAttributes.isEmpty() || null!=oResolver;
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * @return URIResolver Configured URIResolver or <b>null</b>
+   */
+  URIResolver getURIResolver() {
+    return oResolver;
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * Get the factory of the current thread
+   * @param oCompileResolver URIResolver to be used for the next compilation, or <b>null</b> for the configured one
+   * @return TransformerFactory
+   * @throws TransformerConfigurationException
+   */
+  TransformerFactory get(URIResolver oCompileResolver) throws TransformerConfigurationException {
+    TransformerFactory oFactory = oFactories.get();
+    if (null==oFactory) {
+      try {
+        oFactory = TransformerFactory.newInstance(sClassName, oLoader);
+      } catch (Error xcpt) {
+        throw new TransformerConfigurationException(xcpt.getMessage(), xcpt);
+      }
+      configure(oFactory);
+      oFactories.set(oFactory);
+    }
+    oFactory.setURIResolver(null==oCompileResolver ? oResolver : oCompileResolver);
+    return oFactory;
+  } // get
+
+  // ----------------------------------------------------------
+
+  private void configure(TransformerFactory oFactory) throws TransformerConfigurationException {
+    for (Map.Entry<String,Boolean> oFeature : oFeatures.entrySet())
+      oFactory.setFeature(oFeature.getKey(), oFeature.getValue().booleanValue());
+    try {
+      for (Map.Entry<String,Object> oAttribute : oAttributes.entrySet())
+        oFactory.setAttribute(oAttribute.getKey(), oAttribute.getValue());
+    } catch (IllegalArgumentException xcpt) {
+      throw new TransformerConfigurationException(xcpt.getMessage(), xcpt);
+    }
+  } // configure
+
+} // SharedTransformerFactory
@@ -12,21 +12,52 @@ package com.knowgate.xhtml;
  * KIND, either express or implied.
  */
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 
-import java.util.WeakHashMap;
+import java.net.URI;
+
+import java.nio.file.Path;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.Source;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.URIResolver;
 import javax.xml.transform.Templates;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerConfigurationException;
@@ -37,18 +68,68 @@ import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
 import javax.xml.validation.Validator;
 
+import com.knowgate.xhtml.BoundedCache.EvictionPolicy;
+
 /**
  * XSL File Cache
  * This class keeps a master copy in memory of each XSL Stylesheet file.<br>
  * When a Transformer object is requested a copy of the master Stylesheet is
  * done. This is faster than re-loading the XSL file from disk.<br>
- * StylesheetCache is a WeakHashMap so cached stylesheets can be automatically
- * garbage collected is memory runs low.
+ * Looking up a cached stylesheet takes no lock. When a stylesheet is not cached
+ * or has been modified it is compiled only once by the first thread that requests it,
+ * while other threads requesting the same file wait for that compilation to finish
+ * and threads requesting other files go on in parallel.<br>
+ * The cache is bounded by default to {@link #DEFAULT_MAX_CACHED_BYTES} bytes of XSL source
+ * and evicts the least recently used stylesheets first. Its limits can be changed
+ * with setMaxCachedBytes() or setMaxCachedStylesheets() and its effectiveness
+ * observed with getCacheStats().<br>
+ * The transform() methods borrow Transformers from a pool kept for each cached
+ * stylesheet and give them back reset when they finish, so that a new Transformer
+ * is not created for each transformation. Other code can do the same with
+ * borrowTransformer().<br>
+ * By default the modification date of a stylesheet file is checked at each request.
+ * In {@link InvalidationMode#WATCH} mode the directories of the cached stylesheets are
+ * registered with a java.nio.file.WatchService instead, and cache hits do not touch the file system.<br>
+ * The files loaded by xsl:import and xsl:include while compiling a stylesheet are
+ * recorded as its dependencies, and a change of any of them invalidates the stylesheet
+ * in both modes. A change of a shared include only invalidates the stylesheets that use it.<br>
+ * Optionally, compiled stylesheets can also be stored at a directory with
+ * setTransletCacheDirectory() and then loaded from there after a restart.<br>
+ * precompile() fills the cache in parallel before the application starts serving requests.<br>
+ * An optional output cache, enabled with setOutputCache(), keeps the result of
+ * transform(String,...) for each stylesheet version, input document and parameters,
+ * so that repeating a transformation just copies its previous result.
  * @author Sergio Montoro Ten
- * @version 7.0
+ * @version 9.1
  */
 public class StylesheetCache {
 
+  /**
+   * Default maximum total length of the XSL source files whose compiled form is cached
+   */
+  public static final long DEFAULT_MAX_CACHED_BYTES = 16l*1024l*1024l;
+
+  private static volatile int iMaxPooledTransformers = 2*Runtime.getRuntime().availableProcessors();
+
+  /**
+   * How modified stylesheets are detected
+   * @since 9.1
+   */
+  public enum InvalidationMode {
+    /**
+     * Check the file modification date at each request
+     */
+    STAT,
+    /**
+     * Invalidate cached stylesheets when a WatchService reports that their file changed.
+     * Files of directories that cannot be watched are still checked at each request.
+     * Note that on network file systems changes made from other hosts are usually not reported.
+     */
+    WATCH
+  }
+
+  private static volatile StylesheetWatcher oWatcher = null;
+
   private StylesheetCache() { }
 
   // ---------------------------------------------------------------------------
@@ -57,48 +138,251 @@ public class StylesheetCache {
    * Get Transformer object for XSL file.
    * StylesheetCache automatically checks file last modification date and compares
    * it with loading date for cached objects. If file is more recent than its cached
-   * object then the disk copy is reloaded.
+   * object then the disk copy is reloaded.<br>
+   * If compilation fails the same exception is thrown to every thread that was
+   * waiting for it and the file will be compiled again at the next request.
    * @param sFilePath File Path
+   * @throws FileNotFoundException if sFilePath does not exist
+   * @throws InterruptedIOException if the current thread is interrupted while waiting for another thread to compile the file
    * @throws IOException
    * @throws TransformerException
    * @throws TransformerConfigurationException
    */
-  public static synchronized Transformer newTransformer(String sFilePath)
+  public static Transformer newTransformer(String sFilePath)
     throws FileNotFoundException, IOException, TransformerException, TransformerConfigurationException {
+    return getSheet(sFilePath).newTransformer();
+  } // newTransformer()
 
-    File oFile = new File(sFilePath);
+  // ---------------------------------------------------------------------------
 
-    if (!oFile.exists()) {
-      throw new FileNotFoundException(sFilePath);
+  /**
+   * <p>Borrow a pooled Transformer for an XSL file</p>
+   * The Transformer must be given back by calling close() on the returned lease
+   * once the transformation is done, and it must not be used afterwards.
+   * It will then be reset and its parameters cleared before being lent again.
+   * <pre>
+   * TransformerLease oLease = StylesheetCache.borrowTransformer(sFilePath);
+   * try {
+   *   oLease.getTransformer().transform(oSource, oResult);
+   * } finally {
+   *   oLease.close();
+   * }
+   * </pre>
+   * The file is checked for modifications and compiled in the same way as by newTransformer().
+   * @param sFilePath File Path
+   * @return TransformerLease
+   * @throws FileNotFoundException if sFilePath does not exist
+   * @throws IOException
+   * @throws TransformerException
+   * @throws TransformerConfigurationException
+   * @since 9.1
+   */
+  public static TransformerLease borrowTransformer(String sFilePath)
+    throws FileNotFoundException, IOException, TransformerException, TransformerConfigurationException {
+    SheetEntry oSheet = getSheet(sFilePath);
+    return new TransformerLease(oSheet, oSheet.borrow());
+  } // borrowTransformer
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * <p>Compile all the stylesheets of a directory and put them into the cache</p>
+   * Files ending with .xsl or .xslt are searched recursively. Files which are only meant
+   * to be included by other stylesheets are compiled as well, and will be reported as
+   * failed if they are not valid stylesheets by themselves.
+   * @param oDirectory File Base directory
+   * @param iThreads int Number of stylesheets compiled at the same time
+   * @return Map Result for each stylesheet path, in the order in which the files were found
+   * @throws FileNotFoundException if oDirectory is not a directory
+   * @throws InterruptedException if the current thread is interrupted while waiting for compilations to finish
+   * @since 9.1
+   */
+  public static Map<String,PrecompileResult> precompile(File oDirectory, int iThreads)
+    throws FileNotFoundException, InterruptedException {
+    if (!oDirectory.isDirectory()) throw new FileNotFoundException(oDirectory.getPath());
+    ArrayList<String> aPaths = new ArrayList<String>();
+    listStylesheets(oDirectory, aPaths);
+    return precompile(aPaths, iThreads);
+  } // precompile
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * <p>Compile stylesheets in parallel and put them into the cache</p>
+   * A thread pool is created for the compilations and shut down when they finish.
+   * @param aPaths Collection of XSL file paths
+   * @param iThreads int Number of stylesheets compiled at the same time
+   * @return Map Result for each stylesheet path, in the order given by aPaths
+   * @throws IllegalArgumentException if iThreads is less than 1
+   * @throws InterruptedException if the current thread is interrupted while waiting for compilations to finish
+   * @since 9.1
+   */
+  public static Map<String,PrecompileResult> precompile(Collection<String> aPaths, int iThreads)
+    throws IllegalArgumentException, InterruptedException {
+    if (iThreads<1) throw new IllegalArgumentException("StylesheetCache.precompile() number of threads must be at least 1");
+    if (aPaths.isEmpty()) return new LinkedHashMap<String,PrecompileResult>();
+    ExecutorService oPool = Executors.newFixedThreadPool(Math.min(iThreads, aPaths.size()));
+    try {
+      return precompile(aPaths, oPool);
+    } finally {
+      oPool.shutdownNow();
+    }
+  } // precompile
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * <p>Compile stylesheets at a given executor and put them into the cache</p>
+   * Each stylesheet is compiled in the same way as by newTransformer(), so a stylesheet
+   * already cached and not modified is not compiled again and a stylesheet requested
+   * by other threads while it is being precompiled is compiled only once.
+   * @param aPaths Collection of XSL file paths
+   * @param oExecutor ExecutorService, its number of threads bounds the compilations done at the same time
+   * @return Map Result for each stylesheet path, in the order given by aPaths
+   * @throws InterruptedException if the current thread is interrupted while waiting for compilations to finish
+   * @since 9.1
+   */
+  public static Map<String,PrecompileResult> precompile(Collection<String> aPaths, ExecutorService oExecutor)
+    throws InterruptedException {
+    ArrayList<Future<PrecompileResult>> aTasks = new ArrayList<Future<PrecompileResult>>(aPaths.size());
+    for (final String sPath : aPaths) {
+      aTasks.add(oExecutor.submit(new Callable<PrecompileResult>() {
+        public PrecompileResult call() {
+          final long lStart = System.nanoTime();
+          try {
+            getSheet(sPath);
+            return new PrecompileResult(sPath, System.nanoTime()-lStart, null);
+          } catch (Exception xcpt) {
+            return new PrecompileResult(sPath, System.nanoTime()-lStart, xcpt);
+          }
+        }
+      }));
+    } // next
+    LinkedHashMap<String,PrecompileResult> oResults = new LinkedHashMap<String,PrecompileResult>(aTasks.size()*2);
+    try {
+      for (Future<PrecompileResult> oTask : aTasks) {
+        try {
+          PrecompileResult oResult = oTask.get();
+          oResults.put(oResult.getPath(), oResult);
+        } catch (ExecutionException xcpt) {
+          // Errors are returned as results, only an Error thrown by a compilation gets here
+          throw (Error) xcpt.getCause();
+        }
+      } // next
+    } finally {
+      for (Future<PrecompileResult> oTask : aTasks)
+        oTask.cancel(false);
     }
+    return oResults;
+  } // precompile
+
+  // ---------------------------------------------------------------------------
+
+  private static void listStylesheets(File oDirectory, List<String> aPaths) {
+    File[] aFiles = oDirectory.listFiles();
+    if (null==aFiles) return;
+    for (File oFile : aFiles) {
+      if (oFile.isDirectory()) {
+        listStylesheets(oFile, aPaths);
+      } else {
+        final String sName = oFile.getName().toLowerCase();
+        if (sName.endsWith(".xsl") || sName.endsWith(".xslt"))
+          aPaths.add(oFile.getPath());
+      }
+    } // next
+  } // listStylesheets
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Set the maximum number of idle Transformers kept for each cached stylesheet
+   * @param iMaxPooled int Zero disables pooling. The default is twice the number of processors.
+   * @throws IllegalArgumentException if iMaxPooled is negative
+   * @since 9.1
+   */
+  public static void setMaxPooledTransformers(int iMaxPooled) throws IllegalArgumentException {
+    if (iMaxPooled<0) throw new IllegalArgumentException("StylesheetCache.setMaxPooledTransformers() value may not be negative");
+    iMaxPooledTransformers = iMaxPooled;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Get the cache entry of an XSL file, compiling it if it is not cached or has been modified
+   */
+  private static SheetEntry getSheet(String sFilePath)
+    throws FileNotFoundException, IOException, TransformerException {
+
+    final BoundedCache<String,SheetEntry> oSheets = oCache;
+    final StylesheetWatcher oWatch = oWatcher;
+    SheetEntry oSheet = oSheets.get(sFilePath);
+
+    if (null!=oSheet && null!=oWatch && oSheet.watcher==oWatch) {
+      getTemplates(oSheets, sFilePath, oSheet);
+      return oSheet;
+    }
+
+    File oFile = new File(sFilePath);
+
+    // Register the directory before reading the modification date so that no change is missed
+    final long lEpoch = null==oWatch ? 0l : oWatch.getEpoch();
+    final boolean bWatched = null!=oWatch && oWatch.register(SheetEntry.pathOf(oFile).getParent());
+
     long lastMod = oFile.lastModified();
 
-    TransformerFactory oFactory;
-    Templates oTemplates;
-    StreamSource oStreamSrc;
-    SheetEntry oSheet = oCache.get(sFilePath);
+    if (0l==lastMod && !oFile.exists()) {
+      throw new FileNotFoundException(sFilePath);
+    }
 
-    if (null!=oSheet) {
-      if (lastMod>oSheet.lastModified) {
-        oSheet = null;
-        oCache.remove(sFilePath);
+    while (null==oSheet || oSheet.isStale(lastMod)) {
+      SheetEntry oNewSheet = new SheetEntry(lastMod, oFile, oSheets);
+      if (null==oSheet) {
+        oSheet = oSheets.putIfAbsent(sFilePath, oNewSheet);
+        if (null==oSheet) {
+          oSheet = oNewSheet;
+          oSheet.loader.run();
+        }
+      } else if (oSheets.replace(sFilePath, oSheet, oNewSheet)) {
+        oSheet = oNewSheet;
+        oSheet.loader.run();
+      } else {
+        // Another thread replaced or removed the stale entry first
+        oSheet = oSheets.get(sFilePath);
       }
-    } // fi (oSheet)
-
-    if (null==oSheet) {
-      oFactory = TransformerFactory.newInstance();
-      File oFlSrc = new File(sFilePath);
-      oStreamSrc = new StreamSource(oFlSrc);
-      oStreamSrc.setSystemId(oFlSrc);
-      oTemplates = oFactory.newTemplates(oStreamSrc);
-      oSheet = new SheetEntry(lastMod, oTemplates);
-      oCache.put(sFilePath, oSheet);
-    } // fi
+    } // wend
 
-    Transformer oTransformer = oSheet.templates.newTransformer();
+    getTemplates(oSheets, sFilePath, oSheet);
 
-    return oTransformer;
-  } // newTransformer()
+    // If a directory stopped being watched meanwhile the entry keeps checking modification dates
+    if (bWatched && oSheet.watcher!=oWatch && oSheet.watchDependencies(oWatch) && oWatch.getEpoch()==lEpoch) {
+      oSheet.watcher = oWatch;
+    }
+
+    return oSheet;
+  } // getSheet
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Wait for the compilation of a cache entry and unwrap its exception if it failed
+   */
+  private static Templates getTemplates(BoundedCache<String,SheetEntry> oSheets, String sFilePath, SheetEntry oSheet)
+    throws IOException, TransformerException {
+    try {
+      return oSheet.loader.get();
+    } catch (InterruptedException xcpt) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("StylesheetCache.newTransformer() interrupted while waiting for "+sFilePath);
+    } catch (ExecutionException xcpt) {
+      oSheets.remove(sFilePath, oSheet);
+      Throwable oCause = xcpt.getCause();
+      if (oCause instanceof TransformerException) throw (TransformerException) oCause;
+      if (oCause instanceof IOException) throw (IOException) oCause;
+      if (oCause instanceof RuntimeException) throw (RuntimeException) oCause;
+      if (oCause instanceof Error) throw (Error) oCause;
+      throw new TransformerException(oCause);
+    }
+  } // getTemplates
 
   // ---------------------------------------------------------------------------
 
@@ -165,15 +449,47 @@ public class StylesheetCache {
     if (null==oOutputStream)
       	throw new NullPointerException ("StylesheetCache.transform() OutputStream may not be null");
 
-    Transformer oTransformer = StylesheetCache.newTransformer(sStyleSheetPath);
+    final BoundedCache<OutputKey,Object> oOutCache = oOutputs;
+
+    if (null!=oOutCache) {
+      final byte[] aInput = readFully(oXMLInputStream);
+      final SheetEntry oSheet = getSheet(sStyleSheetPath);
+      final OutputKey oKey = new OutputKey(sStyleSheetPath, oSheet.version, digest(aInput), false, oProps);
+      byte[] aOutput = (byte[]) oOutCache.get(oKey);
+      if (null==aOutput) {
+        final long lStart = System.nanoTime();
+        ByteArrayOutputStream oBuffer = new ByteArrayOutputStream(Math.max(256, aInput.length));
+        TransformerLease oLease = new TransformerLease(oSheet, oSheet.borrow());
+        try {
+          Transformer oTransformer = oLease.getTransformer();
+          if (null!=oProps) setParameters(oTransformer, oProps);
+          oTransformer.transform(new StreamSource(new ByteArrayInputStream(aInput)), new StreamResult(oBuffer));
+        } finally {
+          oLease.close();
+        }
+        aOutput = oBuffer.toByteArray();
+        oOutCache.recordLoad(System.nanoTime()-lStart, true);
+        if (aOutput.length<=oOutCache.getMaxWeight()) oOutCache.put(oKey, aOutput);
+      }
+      oOutputStream.write(aOutput);
+      return;
+    } // fi
+
+    TransformerLease oLease = StylesheetCache.borrowTransformer(sStyleSheetPath);
+
+    try {
+      Transformer oTransformer = oLease.getTransformer();
 
-    if (null!=oProps) setParameters(oTransformer, oProps);
+      if (null!=oProps) setParameters(oTransformer, oProps);
 
-    StreamSource oStreamSrcXML = new StreamSource(oXMLInputStream);
+      StreamSource oStreamSrcXML = new StreamSource(oXMLInputStream);
 
-    StreamResult oStreamResult = new StreamResult(oOutputStream);
+      StreamResult oStreamResult = new StreamResult(oOutputStream);
 
-    oTransformer.transform(oStreamSrcXML, oStreamResult);
+      oTransformer.transform(oStreamSrcXML, oStreamResult);
+    } finally {
+      oLease.close();
+    }
 
   } // transform
 
@@ -187,6 +503,8 @@ public class StylesheetCache {
    * will be added as a preffix to each property name passed as parameter.
    * So if you pass a property named "workarea" it must be retrieved from XSL
    * as &lt;xsl:param name="param_workarea"/&gt;
+   * The input is parsed from its characters, so the encoding given at its XML declaration
+   * is ignored, and the output is returned as characters without being encoded.
    * @return String Transformed document
    * @throws NullPointerException if sXMLInput or oProps are <b>null</b>
    * @throws FileNotFoundException if sStyleSheetPath does not exist
@@ -204,46 +522,126 @@ public class StylesheetCache {
       throw new NullPointerException("StylesheetCache.transform() XML input String may not be null");
     }
 
-    // ****************************************
-    // Get character encoding of input XML data
-    String sEncoding;
-    int iEnc = sXMLInput.toLowerCase().indexOf("encoding");
-    if (iEnc<0) {
-      sEncoding = "ISO8859_1";
-    } else {
-      int iBeg = iEnc+8;
-      int iEnd;
-      while (sXMLInput.charAt(iBeg)==' ' || sXMLInput.charAt(iBeg)=='=') iBeg++;
-      while (sXMLInput.charAt(iBeg)==' ') iBeg++;
-      if (sXMLInput.charAt(iBeg)=='"') {
-        iEnd = ++iBeg;
-        while (sXMLInput.charAt(iEnd)!='"') iEnd++;
-      } else {
-        iEnd = iBeg;
-        while (sXMLInput.charAt(iEnd)!=' ' && sXMLInput.charAt(iEnd)!='?') iEnd++;
-      } // fi
-      sEncoding = sXMLInput.substring(iBeg, iEnd);
-    } // fi
-    // ****************************************
+    final BoundedCache<OutputKey,Object> oOutCache = oOutputs;
+    final SheetEntry oSheet = getSheet(sStyleSheetPath);
+    OutputKey oKey = null;
+    long lStart = 0l;
 
-    ByteArrayOutputStream oOutputStream = new ByteArrayOutputStream();
-    ByteArrayInputStream oXMLInputStream = new ByteArrayInputStream(sXMLInput.getBytes(sEncoding));
-    Transformer oTransformer = StylesheetCache.newTransformer(sStyleSheetPath);
-    if (null!=oProps) setParameters(oTransformer, oProps);
-    StreamSource oStreamSrcXML = new StreamSource(oXMLInputStream);
-    StreamResult oStreamResult = new StreamResult(oOutputStream);
-    oTransformer.transform(oStreamSrcXML, oStreamResult);
-    oStreamSrcXML = null;
-    oXMLInputStream.close();
-    String sRetVal = oOutputStream.toString(sEncoding);
-    oStreamResult = null;
-    oOutputStream.close();
+    if (null!=oOutCache) {
+      oKey = new OutputKey(sStyleSheetPath, oSheet.version, digest(sXMLInput), true, oProps);
+      String sCached = (String) oOutCache.get(oKey);
+      if (null!=sCached) return sCached;
+      lStart = System.nanoTime();
+    }
+
+    StringWriter oOutput = new StringWriter(Math.max(256, sXMLInput.length()));
+    transform(oSheet, sXMLInput, oOutput, oProps);
+    String sRetVal = oOutput.toString();
+
+    if (null!=oKey) {
+      oOutCache.recordLoad(System.nanoTime()-lStart, true);
+      if (2l*sRetVal.length()<=oOutCache.getMaxWeight()) oOutCache.put(oKey, sRetVal);
+    }
 
     return sRetVal;
   } // transform
 
   // ---------------------------------------------------------------------------
 
+  /**
+   * Perform XSLT transformation writing its output to a Writer
+   * The input is parsed from its characters, so the encoding given at its XML declaration
+   * is ignored. The output is written as characters and the Writer decides how they are encoded.
+   * @param sStyleSheetPath File Path to XSL style sheet file
+   * @param oXMLInput CharSequence with XML source data
+   * @param oOutput Writer Output document. It is not closed by this method.
+   * @param oProps Parameters for Transformer. The substring "param_"
+   * will be added as a preffix to each property name passed as parameter.
+   * @throws NullPointerException if oXMLInput or oOutput are <b>null</b>
+   * @throws FileNotFoundException if sStyleSheetPath does not exist
+   * @throws IOException
+   * @throws TransformerException
+   * @throws TransformerConfigurationException
+   * @since 9.1
+   */
+  public static void transform (String sStyleSheetPath, CharSequence oXMLInput,
+                                Writer oOutput, Properties oProps)
+    throws IOException, FileNotFoundException,
+           NullPointerException, TransformerException, TransformerConfigurationException {
+
+    if (null==oXMLInput)
+      throw new NullPointerException("StylesheetCache.transform() XML input may not be null");
+
+    if (null==oOutput)
+      throw new NullPointerException("StylesheetCache.transform() Writer may not be null");
+
+    final BoundedCache<OutputKey,Object> oOutCache = oOutputs;
+    final SheetEntry oSheet = getSheet(sStyleSheetPath);
+
+    if (null!=oOutCache) {
+      final OutputKey oKey = new OutputKey(sStyleSheetPath, oSheet.version, digest(oXMLInput), true, oProps);
+      String sOutput = (String) oOutCache.get(oKey);
+      if (null==sOutput) {
+        final long lStart = System.nanoTime();
+        StringWriter oBuffer = new StringWriter(Math.max(256, oXMLInput.length()));
+        transform(oSheet, oXMLInput, oBuffer, oProps);
+        sOutput = oBuffer.toString();
+        oOutCache.recordLoad(System.nanoTime()-lStart, true);
+        if (2l*sOutput.length()<=oOutCache.getMaxWeight()) oOutCache.put(oKey, sOutput);
+      }
+      oOutput.write(sOutput);
+      return;
+    } // fi
+
+    transform(oSheet, oXMLInput, oOutput, oProps);
+  } // transform
+
+  // ---------------------------------------------------------------------------
+
+  private static void transform (SheetEntry oSheet, CharSequence oXMLInput, Writer oOutput, Properties oProps)
+    throws IOException, TransformerException {
+    final Reader oReader = oXMLInput instanceof String ? new StringReader((String) oXMLInput) : new CharSequenceReader(oXMLInput);
+    TransformerLease oLease = new TransformerLease(oSheet, oSheet.borrow());
+    try {
+      Transformer oTransformer = oLease.getTransformer();
+      if (null!=oProps) setParameters(oTransformer, oProps);
+      oTransformer.transform(new StreamSource(oReader), new StreamResult(oOutput));
+    } finally {
+      oLease.close();
+    }
+  } // transform
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Reader over a CharSequence which is not a String, so it does not have to be copied
+   */
+  private static final class CharSequenceReader extends Reader {
+    private final CharSequence oChars;
+    private int iPos;
+
+    CharSequenceReader(CharSequence oChars) {
+      this.oChars = oChars;
+      this.iPos = 0;
+    }
+
+    @Override
+    public int read(char[] aBuffer, int iOff, int iLen) {
+      final int iAvail = oChars.length()-iPos;
+      if (iAvail<=0) return -1;
+      final int iCount = Math.min(iLen, iAvail);
+      for (int c=0; c<iCount; c++)
+        aBuffer[iOff+c] = oChars.charAt(iPos+c);
+      iPos += iCount;
+      return iCount;
+    }
+
+    @Override
+    public void close() { }
+  } // CharSequenceReader
+
+  // ---------------------------------------------------------------------------
+
   /**
    * Perform XSLT transformation
    * @param oStyleSheetStream Stream to XSL style sheet
@@ -278,18 +676,20 @@ public class StylesheetCache {
     ByteArrayOutputStream oOutputStream = new ByteArrayOutputStream();
 
     Transformer oTransformer;
+    TransformerLease oLease = null;
     final String sXSLSystemId = oProps.getProperty("XSLSystemId");
 
     if (sXSLSystemId==null) {
-      TransformerFactory oFactory = TransformerFactory.newInstance();
+      TransformerFactory oFactory = oSharedFactory.get(null);
       StreamSource oStreamSrc = new StreamSource(oStyleSheetStream);
       Templates oTemplates = oFactory.newTemplates(oStreamSrc);
       oTransformer = oTemplates.newTransformer();
     } else {
       if (oCache.containsKey(sXSLSystemId)) {
-    	oTransformer = StylesheetCache.newTransformer(sXSLSystemId);
+        oLease = StylesheetCache.borrowTransformer(sXSLSystemId);
+        oTransformer = oLease.getTransformer();
       } else {
-        TransformerFactory oFactory = TransformerFactory.newInstance();
+        TransformerFactory oFactory = oSharedFactory.get(null);
         StreamSource oStreamSrc = new StreamSource(oStyleSheetStream);
         oStreamSrc.setSystemId(oProps.getProperty("XSLSystemId"));
         Templates oTemplates = oFactory.newTemplates(oStreamSrc);
@@ -297,15 +697,17 @@ public class StylesheetCache {
       }
     }
 
-    if (null!=oProps) setParameters(oTransformer, oProps);
-    StreamSource oStreamSrcXML = new StreamSource(oXMLInputStream);
-    if (oProps.getProperty("XMLSystemId")!=null) oStreamSrcXML.setSystemId(oProps.getProperty("XMLSystemId"));
-    StreamResult oStreamResult = new StreamResult(oOutputStream);
-    oTransformer.transform(oStreamSrcXML, oStreamResult);
-    oStreamSrcXML = null;
+    try {
+      if (null!=oProps) setParameters(oTransformer, oProps);
+      StreamSource oStreamSrcXML = new StreamSource(oXMLInputStream);
+      if (oProps.getProperty("XMLSystemId")!=null) oStreamSrcXML.setSystemId(oProps.getProperty("XMLSystemId"));
+      StreamResult oStreamResult = new StreamResult(oOutputStream);
+      oTransformer.transform(oStreamSrcXML, oStreamResult);
+    } finally {
+      if (null!=oLease) oLease.close();
+    }
     oXMLInputStream.close();
     String sRetVal = oOutputStream.toString(sEncoding);
-    oStreamResult = null;
     oOutputStream.close();
 
     return sRetVal;
@@ -404,18 +806,628 @@ public class StylesheetCache {
   public static void clearCache () {
     oCache.clear();
   }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Set how modified stylesheets are detected
+   * @param eMode InvalidationMode
+   * @throws IOException if a WatchService cannot be created
+   * @since 9.1
+   */
+  public static synchronized void setInvalidationMode (InvalidationMode eMode) throws IOException {
+    if (InvalidationMode.WATCH==eMode) {
+      if (null==oWatcher) oWatcher = new StylesheetWatcher();
+    } else if (null!=oWatcher) {
+      oWatcher.close();
+      oWatcher = null;
+    }
+  } // setInvalidationMode
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * @return InvalidationMode
+   * @since 9.1
+   */
+  public static InvalidationMode getInvalidationMode () {
+    return null==oWatcher ? InvalidationMode.STAT : InvalidationMode.WATCH;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * <p>Remove the cached stylesheets that depend on a file</p>
+   * These are the stylesheet compiled from the file, if any, and the
+   * stylesheets that imported or included it. Other stylesheets are kept.
+   * @param sFilePath String Path of an XSL file that changed
+   * @return int Number of stylesheets removed from the cache
+   * @since 9.1
+   */
+  public static int invalidate (String sFilePath) {
+    return invalidateFile(SheetEntry.pathOf(new File(sFilePath)));
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Remove the cached stylesheets compiled from a file or depending on it
+   * @param oChanged Path Absolute normalized path of a file that changed
+   * @return int Number of stylesheets removed
+   */
+  static int invalidateFile (Path oChanged) {
+    final BoundedCache<String,SheetEntry> oSheets = oCache;
+    int nRemoved = 0;
+    for (Map.Entry<String,SheetEntry> oEntry : oSheets.entrySet()) {
+      if (oEntry.getValue().dependsOn(oChanged) && oSheets.remove(oEntry.getKey(), oEntry.getValue()))
+        nRemoved++;
+    }
+    return nRemoved;
+  } // invalidateFile
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * @param oDir Path Absolute normalized path of a directory
+   * @return boolean <b>true</b> if a cached stylesheet or any of its dependencies is at the directory
+   */
+  static boolean usesDirectory (Path oDir) {
+    final BoundedCache<String,SheetEntry> oSheets = oCache;
+    for (SheetEntry oSheet : oSheets.values()) {
+      if (oSheet.dependsOnDirectory(oDir)) return true;
+    }
+    return false;
+  } // usesDirectory
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Remove the cached stylesheets compiled from files of a directory
+   * @param oDir Path Absolute normalized path of the directory
+   */
+  static void invalidateDirectory (Path oDir) {
+    final BoundedCache<String,SheetEntry> oSheets = oCache;
+    for (Map.Entry<String,SheetEntry> oEntry : oSheets.entrySet()) {
+      if (oEntry.getValue().dependsOnDirectory(oDir))
+        oSheets.remove(oEntry.getKey(), oEntry.getValue());
+    }
+  } // invalidateDirectory
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Bound the cache by the total length of the cached XSL source files.
+   * The current cache is discarded and its statistics are reset.
+   * @param lMaxBytes long Maximum total length in bytes of the XSL files whose compiled form is kept
+   * @param ePolicy EvictionPolicy LRU or LFU
+   * @param bSoftValues boolean If <b>true</b> compiled stylesheets may also be garbage collected when memory runs low
+   * @throws IllegalArgumentException if lMaxBytes is less than 1
+   * @since 9.1
+   */
+  public static void setMaxCachedBytes (long lMaxBytes, EvictionPolicy ePolicy, boolean bSoftValues)
+    throws IllegalArgumentException {
+    BoundedCache<String,SheetEntry> oOld = oCache;
+    oCache = new BoundedCache<String,SheetEntry>(lMaxBytes, SOURCE_LENGTH, ePolicy, bSoftValues);
+    oOld.clear();
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Bound the cache by the number of cached stylesheets.
+   * The current cache is discarded and its statistics are reset.
+   * @param iMaxStylesheets int Maximum number of compiled stylesheets kept
+   * @param ePolicy EvictionPolicy LRU or LFU
+   * @param bSoftValues boolean If <b>true</b> compiled stylesheets may also be garbage collected when memory runs low
+   * @throws IllegalArgumentException if iMaxStylesheets is less than 1
+   * @since 9.1
+   */
+  public static void setMaxCachedStylesheets (int iMaxStylesheets, EvictionPolicy ePolicy, boolean bSoftValues)
+    throws IllegalArgumentException {
+    BoundedCache<String,SheetEntry> oOld = oCache;
+    oCache = new BoundedCache<String,SheetEntry>(iMaxStylesheets, null, ePolicy, bSoftValues);
+    oOld.clear();
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * <p>Configure the TransformerFactory used for compiling stylesheets</p>
+   * The factory class is looked up once here instead of at each compilation.
+   * Each thread compiles with its own factory instance, created with these settings.
+   * Stylesheets already cached are kept, call clearCache() for compiling them again.<br>
+   * For example, secure processing is enabled by passing
+   * javax.xml.XMLConstants.FEATURE_SECURE_PROCESSING=true at oFeatures, and
+   * XSLTC specific settings are passed as attributes.
+   * @param sFactoryClassName String TransformerFactory implementation class name,
+   * or <b>null</b> for the one found by TransformerFactory.newInstance()
+   * @param oFeatures Map Features to be set at each factory, or <b>null</b>
+   * @param oAttributes Map Attributes to be set at each factory, or <b>null</b>
+   * @param oResolver URIResolver for xsl:import and xsl:include, or <b>null</b> for the processor's default resolution
+   * @throws TransformerConfigurationException if the factory cannot be created or does not support a feature or attribute.
+   * The previous configuration is kept in that case.
+   * @since 9.1
+   */
+  public static void configureTransformerFactory (String sFactoryClassName, Map<String,Boolean> oFeatures,
+                                                  Map<String,Object> oAttributes, URIResolver oResolver)
+    throws TransformerConfigurationException {
+    oSharedFactory = new SharedTransformerFactory(sFactoryClassName, oFeatures, oAttributes, oResolver);
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * <p>Keep compiled stylesheets on disk so that they are not compiled again after a restart</p>
+   * This works with TransformerFactory implementations whose Templates are serializable, like XSLTC,
+   * which is the one that comes with the JDK. Templates of other implementations are not stored.
+   * Stored stylesheets are identified by the hash of their content and the hash of the
+   * content of the files that they import or include, so changed files are compiled again
+   * even if their modification date is older than the stored stylesheet.<br>
+   * Stylesheets read from disk lose the settings of the factory that compiled them, so the
+   * disk cache is not used while configureTransformerFactory() has set any feature,
+   * attribute or URIResolver. Stylesheets are then compiled as if there was no disk cache.<br>
+   * Stored stylesheets hold bytecode which is run by this process, so the directory must only be
+   * writable by the user that runs it. A directory owned by another user, or writable by its group
+   * or by others, is rejected.
+   * @param sDirectory String Cache directory or <b>null</b> for disabling the disk cache
+   * @throws IOException if the directory cannot be created, is not writable or may be written by other users
+   * @since 9.1
+   */
+  public static void setTransletCacheDirectory (String sDirectory) throws IOException {
+    oTranslets = null==sDirectory ? null : new TransletDiskCache(new File(sDirectory));
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * <p>Enable or disable the output cache</p>
+   * When it is enabled, transform(String,InputStream,OutputStream,Properties) and
+   * transform(String,String,Properties) look for a previous result of the same
+   * stylesheet version, the same input document and the same parameters before
+   * transforming. Input documents are identified by their SHA-256 hash, so the input
+   * stream is read completely into memory before transforming it.
+   * Results of a stylesheet are no longer used after the stylesheet changes, and are
+   * evicted as the least recently used entries.<br>
+   * Only enable it if the output of the stylesheets depends solely on the input document
+   * and parameters, and not on documents loaded with document() nor on the current time.
+   * The current output cache, if any, is discarded.
+   * @param lMaxBytes long Maximum estimated size of the cached results in bytes, zero disables the output cache
+   * @throws IllegalArgumentException if lMaxBytes is negative
+   * @since 9.1
+   */
+  public static void setOutputCache (long lMaxBytes) throws IllegalArgumentException {
+    if (lMaxBytes<0l) throw new IllegalArgumentException("StylesheetCache.setOutputCache() size may not be negative");
+    oOutputs = 0l==lMaxBytes ? null : new BoundedCache<OutputKey,Object>(lMaxBytes, OUTPUT_SIZE, EvictionPolicy.LRU, false);
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Get output cache statistics
+   * @return BoundedCache.Stats or <b>null</b> if the output cache is not enabled
+   * @since 9.1
+   */
+  public static BoundedCache.Stats getOutputCacheStats () {
+    final BoundedCache<OutputKey,Object> oOutCache = oOutputs;
+    return null==oOutCache ? null : oOutCache.getStats();
+  }
+
+  // ---------------------------------------------------------------------------
+
+  private static byte[] readFully(InputStream oIn) throws IOException {
+    ByteArrayOutputStream oBuffer = new ByteArrayOutputStream(8192);
+    byte[] aChunk = new byte[8192];
+    int iRead;
+    while ((iRead = oIn.read(aChunk))>0)
+      oBuffer.write(aChunk, 0, iRead);
+    return oBuffer.toByteArray();
+  }
+
+  // ---------------------------------------------------------------------------
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException xcpt) {
+      throw new IllegalStateException("StylesheetCache SHA-256 is not available", xcpt);
+    }
+  }
+
+  private static byte[] digest(byte[] aData) {
+    return newDigest().digest(aData);
+  }
+
+  private static byte[] digest(CharSequence sData) {
+    final MessageDigest oDigest = newDigest();
+    final int iLen = sData.length();
+    final byte[] aChunk = new byte[8192];
+    int iPos = 0;
+    for (int c=0; c<iLen; c++) {
+      final char cChr = sData.charAt(c);
+      aChunk[iPos++] = (byte) (cChr>>8);
+      aChunk[iPos++] = (byte) cChr;
+      if (iPos==aChunk.length) {
+        oDigest.update(aChunk, 0, iPos);
+        iPos = 0;
+      }
+    }
+    oDigest.update(aChunk, 0, iPos);
+    return oDigest.digest();
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Get hit, miss, eviction and compilation time statistics
+   * @return BoundedCache.Stats
+   * @since 9.1
+   */
+  public static BoundedCache.Stats getCacheStats () {
+    return oCache.getStats();
+  }
   
   // ---------------------------------------------------------------------------
 
+  // ---------------------------------------------------------------------------
+
+  /**
+   * <p>Transformer borrowed from the pool of a cached stylesheet</p>
+   * A lease must be used by a single thread and closed exactly once.
+   * @since 9.1
+   */
+  public static final class TransformerLease implements Closeable {
+    private final SheetEntry oSheet;
+    private Transformer oTransformer;
+
+    TransformerLease(SheetEntry oSheet, Transformer oTransformer) {
+      this.oSheet = oSheet;
+      this.oTransformer = oTransformer;
+    }
+
+    /**
+     * @return Transformer
+     * @throws IllegalStateException if the lease has already been closed
+     */
+    public Transformer getTransformer() throws IllegalStateException {
+      if (null==oTransformer) throw new IllegalStateException("TransformerLease already closed");
+      return oTransformer;
+    }
+
+    /**
+     * Give the Transformer back to its pool. Calling this method more than once has no effect.
+     */
+    public void close() {
+      if (null!=oTransformer) {
+        oSheet.release(oTransformer);
+        oTransformer = null;
+      }
+    }
+  } // TransformerLease
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Outcome of precompiling one stylesheet
+   * @since 9.1
+   */
+  public static final class PrecompileResult {
+    private final String sPath;
+    private final long lElapsedNanos;
+    private final Exception oError;
+
+    PrecompileResult(String sPath, long lElapsedNanos, Exception oError) {
+      this.sPath = sPath;
+      this.lElapsedNanos = lElapsedNanos;
+      this.oError = oError;
+    }
+
+    /**
+     * @return String Stylesheet path as it was given
+     */
+    public String getPath() {
+      return sPath;
+    }
+
+    /**
+     * @return long Milliseconds spent compiling the stylesheet, or waiting for another thread that was compiling it
+     */
+    public long getElapsedMillis() {
+      return lElapsedNanos/1000000l;
+    }
+
+    /**
+     * @return boolean <b>true</b> if the stylesheet is now cached
+     */
+    public boolean isSuccess() {
+      return null==oError;
+    }
+
+    /**
+     * @return Exception Compilation error or <b>null</b> if the stylesheet was compiled successfully
+     */
+    public Exception getError() {
+      return oError;
+    }
+
+    @Override
+    public String toString() {
+      return sPath+" "+getElapsedMillis()+"ms"+(null==oError ? "" : " "+oError.getClass().getName()+": "+oError.getMessage());
+    }
+  } // PrecompileResult
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * Key of the output cache: stylesheet version, input document hash and parameters
+   */
+  private static final class OutputKey {
+    private final String sPath;
+    private final long lVersion;
+    private final byte[] aInputDigest;
+    private final boolean bChars;
+    private final TreeMap<String,String> oParams;
+    private final int iHash;
+
+    OutputKey(String sPath, long lVersion, byte[] aInputDigest, boolean bChars, Properties oProps) {
+      this.sPath = sPath;
+      this.lVersion = lVersion;
+      this.aInputDigest = aInputDigest;
+      this.bChars = bChars;
+      this.oParams = new TreeMap<String,String>();
+      if (null!=oProps) {
+        for (Object oName : oProps.keySet())
+          oParams.put((String) oName, oProps.getProperty((String) oName));
+      }
+      this.iHash = ((sPath.hashCode()*31 + (int) (lVersion ^ (lVersion>>>32)))*31 + Arrays.hashCode(aInputDigest))*31 + oParams.hashCode();
+    }
+
+    @Override
+    public int hashCode() {
+      return iHash;
+    }
+
+    @Override
+    public boolean equals(Object oObj) {
+      if (!(oObj instanceof OutputKey)) return false;
+      final OutputKey oKey = (OutputKey) oObj;
+      return iHash==oKey.iHash && lVersion==oKey.lVersion && bChars==oKey.bChars && sPath.equals(oKey.sPath) &&
+             Arrays.equals(aInputDigest, oKey.aInputDigest) && oParams.equals(oKey.oParams);
+    }
+  } // OutputKey
+
+  private static final BoundedCache.Weigher<OutputKey,Object> OUTPUT_SIZE = new BoundedCache.Weigher<OutputKey,Object>() {
+    public long weigh(OutputKey oKey, Object oOutput) {
+      return oOutput instanceof String ? 2l*((String) oOutput).length() : ((byte[]) oOutput).length;
+    }
+  };
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * File loaded through xsl:import or xsl:include and its modification date when it was resolved
+   */
+  static final class Dependency {
+    final File file;
+    final Path path;
+    final long lastModified;
+
+    Dependency (File oFile) {
+      file = oFile;
+      path = SheetEntry.pathOf(oFile);
+      lastModified = oFile.lastModified();
+    }
+
+    boolean isModified() {
+      return file.lastModified()!=lastModified;
+    }
+  } // Dependency
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * URIResolver that records the local files resolved while compiling a stylesheet.
+   * Resolution is delegated to the configured URIResolver if there is one, otherwise
+   * <b>null</b> is returned so the processor loads each file as it would do by default.
+   * XSLTC keeps the resolver of the factory at the Templates it compiles, so files are
+   * only recorded until close() is called once compilation has finished.
+   */
+  static final class DependencyTracker implements URIResolver {
+    final ArrayList<Dependency> dependencies = new ArrayList<Dependency>();
+    private final URIResolver oDelegate;
+    private volatile boolean bClosed;
+
+    DependencyTracker(URIResolver oDelegate) {
+      this.oDelegate = oDelegate;
+      this.bClosed = false;
+    }
+
+    /**
+     * Stop recording dependencies
+     */
+    void close() {
+      bClosed = true;
+    }
+
+    public Source resolve(String sHref, String sBase) throws TransformerException {
+      final Source oSource = null==oDelegate ? null : oDelegate.resolve(sHref, sBase);
+      if (bClosed) return oSource;
+      try {
+        URI oUri;
+        if (null!=oSource && null!=oSource.getSystemId())
+          oUri = new URI(oSource.getSystemId());
+        else
+          oUri = (null==sBase || sBase.length()==0) ? new URI(sHref) : new URI(sBase).resolve(sHref);
+        if ("file".equalsIgnoreCase(oUri.getScheme()))
+          dependencies.add(new Dependency(new File(oUri)));
+      } catch (Exception xcpt) {
+        // Not a local file, it cannot be tracked
+      }
+      return oSource;
+    }
+  } // DependencyTracker
+
+  // ---------------------------------------------------------------------------
+
   static class SheetEntry {
-    long lastModified;
-    Templates templates;
+    static final Dependency[] NO_DEPENDENCIES = new Dependency[0];
+    private static final String INDENT_NUMBER = "indent-number";
+    private static final String INDENT_AMOUNT = "{http://xml.apache.org/xalan}indent-amount";
+    private static final AtomicLong VERSIONS = new AtomicLong();
 
-    SheetEntry (long lLastModified, Templates oTemplats) {
+    // Unique for each compilation of each stylesheet
+    final long version = VERSIONS.incrementAndGet();
+    final long lastModified;
+    final long length;
+    final Path path;
+    // Watcher of the directories of the file and its dependencies, or null if their modification dates must be checked at each request
+    volatile StylesheetWatcher watcher;
+    final FutureTask<Templates> loader;
+    // Set by loader before it completes
+    volatile Templates templates;
+    // Factory settings that Transformer.reset() discards and must be set again at pooled Transformers
+    volatile URIResolver resolver;
+    volatile String indentAmount;
+    volatile Dependency[] dependencies = NO_DEPENDENCIES;
+    private final ConcurrentLinkedQueue<Transformer> idle = new ConcurrentLinkedQueue<Transformer>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    SheetEntry (long lLastModified, final File oFile, final BoundedCache<String,SheetEntry> oOwner) {
       lastModified = lLastModified;
-      templates = oTemplats;
+      length = oFile.length();
+      path = pathOf(oFile);
+      watcher = null;
+      loader = new FutureTask<Templates>(new Callable<Templates>() {
+        public Templates call() throws TransformerConfigurationException {
+          final long lStart = System.nanoTime();
+          boolean bLoaded = false;
+          try {
+            StreamSource oStreamSrc = new StreamSource(oFile);
+            oStreamSrc.setSystemId(oFile);
+            final SharedTransformerFactory oShared = oSharedFactory;
+            final TransletDiskCache oDiskCache = oTranslets;
+            final Object oIndent = oShared.getAttributes().get(INDENT_NUMBER);
+            resolver = oShared.getURIResolver();
+            DependencyTracker oTracker = new DependencyTracker(oShared.getURIResolver());
+            if (null==oDiskCache)
+              templates = oShared.get(oTracker).newTemplates(oStreamSrc);
+            else
+              templates = oDiskCache.getTemplates(oFile, oShared, oTracker);
+            oTracker.close();
+            indentAmount = null==oIndent || declaresIndentAmount(templates) ? null : oIndent.toString();
+            dependencies = oTracker.dependencies.toArray(new Dependency[oTracker.dependencies.size()]);
+            bLoaded = true;
+            return templates;
+          } finally {
+            oOwner.recordLoad(System.nanoTime()-lStart, bLoaded);
+          }
+        }
+      });
+    }
+
+    /**
+     * @return boolean <b>true</b> if the xsl:output of the stylesheet sets its own indent-amount,
+     * which must not be replaced by the indent-number of the factory
+     */
+    private static boolean declaresIndentAmount(Templates oTemplates) {
+      // Properties set by the stylesheet are kept at the table itself and the rest at its defaults,
+      // XSLTC keeps xalan:indent-amount as indent_amount
+      final Properties oOutput = oTemplates.getOutputProperties();
+      return oOutput.containsKey(INDENT_AMOUNT) || oOutput.containsKey("indent_amount");
+    }
+
+    static Path pathOf(File oFile) {
+      return oFile.getAbsoluteFile().toPath().normalize();
+    }
+
+    /**
+     * @param lFileLastModified long Current modification date of the stylesheet file
+     * @return boolean <b>true</b> if the stylesheet file or any of its dependencies was modified after compiling it
+     */
+    boolean isStale(long lFileLastModified) {
+      if (lFileLastModified>lastModified) return true;
+      for (Dependency oDep : dependencies)
+        if (oDep.isModified()) return true;
+      return false;
+    }
+
+    boolean dependsOn(Path oFile) {
+      if (path.equals(oFile)) return true;
+      for (Dependency oDep : dependencies)
+        if (oDep.path.equals(oFile)) return true;
+      return false;
+    }
+
+    boolean dependsOnDirectory(Path oDir) {
+      if (oDir.equals(path.getParent())) return true;
+      for (Dependency oDep : dependencies)
+        if (oDir.equals(oDep.path.getParent())) return true;
+      return false;
+    }
+
+    /**
+     * Register the directories of the dependencies with a watcher and then check
+     * that no dependency changed before the registration was done.
+     * @return boolean <b>true</b> if changes of every dependency will be notified by the watcher
+     */
+    boolean watchDependencies(StylesheetWatcher oWatch) {
+      for (Dependency oDep : dependencies)
+        if (!oWatch.register(oDep.path.getParent())) return false;
+      for (Dependency oDep : dependencies)
+        if (oDep.isModified()) return false;
+      return true;
+    }
+
+    /**
+     * Create a Transformer that uses the configured URIResolver instead of the
+     * DependencyTracker that was set at the factory while compiling the stylesheet.
+     */
+    Transformer newTransformer() throws TransformerConfigurationException {
+      Transformer oTransformer = templates.newTransformer();
+      oTransformer.setURIResolver(resolver);
+      return oTransformer;
+    }
+
+    Transformer borrow() throws TransformerConfigurationException {
+      Transformer oTransformer = idle.poll();
+      if (null==oTransformer) return newTransformer();
+      idleCount.decrementAndGet();
+      return oTransformer;
+    }
+
+    /**
+     * Reset a Transformer and keep it for reuse if the pool is not full.
+     * XSLTC's reset() also clears the URIResolver and the indentation given by the
+     * indent-number factory attribute, so both are set again as a new Transformer has them.
+     * The indentation is not set if the stylesheet declares its own indent-amount.
+     */
+    void release(Transformer oTransformer) {
+      try {
+        oTransformer.reset();
+        oTransformer.clearParameters();
+        oTransformer.setURIResolver(resolver);
+        if (null!=indentAmount) oTransformer.setOutputProperty(INDENT_AMOUNT, indentAmount);
+      } catch (RuntimeException xcpt) {
+        // A Transformer that cannot be reset is not pooled
+        return;
+      }
+      if (idleCount.incrementAndGet()<=iMaxPooledTransformers)
+        idle.offer(oTransformer);
+      else
+        idleCount.decrementAndGet();
     }
   } // SheetEntry
 
-  private static WeakHashMap<String,SheetEntry> oCache = new WeakHashMap<String,SheetEntry>();
+  private static final BoundedCache.Weigher<String,SheetEntry> SOURCE_LENGTH = new BoundedCache.Weigher<String,SheetEntry>() {
+    public long weigh(String sFilePath, SheetEntry oSheet) {
+      return oSheet.length;
+    }
+  };
+
+  private static volatile SharedTransformerFactory oSharedFactory = new SharedTransformerFactory();
+
+  private static volatile TransletDiskCache oTranslets = null;
+
+  private static volatile BoundedCache<OutputKey,Object> oOutputs = null;
+
+  private static volatile BoundedCache<String,SheetEntry> oCache = new BoundedCache<String,SheetEntry>(DEFAULT_MAX_CACHED_BYTES, SOURCE_LENGTH, EvictionPolicy.LRU, false);
 } // StylesheetCache
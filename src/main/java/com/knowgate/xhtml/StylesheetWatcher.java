@@ -0,0 +1,159 @@
+package com.knowgate.xhtml;
+
+/**
+ * © Copyright 2016 the original author.
+ * This file is licensed under the Apache License version 2.0.
+ * You may not use this file except in compliance with the license.
+ * You may obtain a copy of the License at:
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.
+ */
+
+import java.io.IOException;
+
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Watch the directories of cached stylesheets for changes</p>
+ * A daemon thread waits for file system events and invalidates the
+ * StylesheetCache entries of the files that were created, modified or deleted.
+ * If events were lost, all the entries of the affected directory are invalidated.<br>
+ * About once a minute the directories which are no longer used by any cached
+ * stylesheet or by its dependencies stop being watched, so the number of
+ * operating system watches does not grow with every directory ever seen.
+ * @author Sergio Montoro Ten
+ * @version 9.1
+ * @since 9.1
+ */
+final class StylesheetWatcher implements Runnable {
+
+  private final WatchService oService;
+  private final ConcurrentHashMap<Path,WatchKey> oDirs;
+  private final AtomicLong oEpoch;
+  private final Thread oThread;
+
+  private static final long PRUNE_INTERVAL_MILLIS = 60000l;
+
+  // ----------------------------------------------------------
+
+  StylesheetWatcher() throws IOException {
+    oService = FileSystems.getDefault().newWatchService();
+    oDirs = new ConcurrentHashMap<Path,WatchKey>();
+    oEpoch = new AtomicLong();
+    oThread = new Thread(this, "StylesheetCache watcher");
+    oThread.setDaemon(true);
+    oThread.start();
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * Start watching a directory, unless it is already being watched
+   * @param oDir Path Absolute normalized path of the directory
+   * @return boolean <b>false</b> if the directory could not be watched
+   */
+  boolean register(Path oDir) {
+    if (oDirs.containsKey(oDir)) return true;
+    try {
+      WatchKey oKey = oDir.register(oService, StandardWatchEventKinds.ENTRY_CREATE,
+                                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+      oDirs.put(oDir, oKey);
+      return true;
+    } catch (IOException xcpt) {
+      return false;
+    } catch (UnsupportedOperationException xcpt) {
+      return false;
+    } catch (ClosedWatchServiceException xcpt) {
+      return false;
+    }
+  } // register
+
+  // ----------------------------------------------------------
+
+  /**
+   * The epoch changes each time that a directory stops being watched.
+   * A cache entry may only rely on the watcher if the epoch did not change
+   * between registering its directories and being marked as watched.
+   * @return long
+   */
+  long getEpoch() {
+    return oEpoch.get();
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * Stop watching the directories which are not used by any cached stylesheet.
+   * Entries which started using a directory while it was being cancelled are invalidated.
+   */
+  void prune() {
+    Iterator<Map.Entry<Path,WatchKey>> oIter = oDirs.entrySet().iterator();
+    while (oIter.hasNext()) {
+      final Map.Entry<Path,WatchKey> oEntry = oIter.next();
+      final Path oDir = oEntry.getKey();
+      if (!StylesheetCache.usesDirectory(oDir) && oDirs.remove(oDir, oEntry.getValue())) {
+        oEntry.getValue().cancel();
+        oEpoch.incrementAndGet();
+        if (StylesheetCache.usesDirectory(oDir))
+          StylesheetCache.invalidateDirectory(oDir);
+      }
+    } // wend
+  } // prune
+
+  // ----------------------------------------------------------
+
+  void close() {
+    try {
+      oService.close();
+    } catch (IOException ignore) { }
+  }
+
+  // ----------------------------------------------------------
+
+  public void run() {
+    long lLastPrune = System.currentTimeMillis();
+    while (true) {
+      WatchKey oKey;
+      try {
+        oKey = oService.poll(PRUNE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException xcpt) {
+        break;
+      } catch (ClosedWatchServiceException xcpt) {
+        break;
+      }
+      if (System.currentTimeMillis()-lLastPrune>=PRUNE_INTERVAL_MILLIS) {
+        prune();
+        lLastPrune = System.currentTimeMillis();
+      }
+      if (null==oKey) continue;
+      final Path oDir = (Path) oKey.watchable();
+      for (WatchEvent<?> oEvent : oKey.pollEvents()) {
+        if (StandardWatchEventKinds.OVERFLOW==oEvent.kind())
+          StylesheetCache.invalidateDirectory(oDir);
+        else
+          StylesheetCache.invalidateFile(oDir.resolve((Path) oEvent.context()));
+      } // next
+      if (!oKey.reset()) {
+        // The directory is no longer accessible
+        oDirs.remove(oDir, oKey);
+        StylesheetCache.invalidateDirectory(oDir);
+      }
+    } // wend
+  } // run
+
+} // StylesheetWatcher
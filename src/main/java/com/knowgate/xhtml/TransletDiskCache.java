@@ -0,0 +1,341 @@
+package com.knowgate.xhtml;
+
+/**
+ * © Copyright 2016 the original author.
+ * This file is licensed under the Apache License version 2.0.
+ * You may not use this file except in compliance with the license.
+ * You may obtain a copy of the License at:
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.UserPrincipal;
+
+import java.util.Set;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.stream.StreamSource;
+
+import com.knowgate.xhtml.StylesheetCache.Dependency;
+import com.knowgate.xhtml.StylesheetCache.DependencyTracker;
+
+/**
+ * <p>Persistent cache of compiled stylesheets</p>
+ * XSLTC compiles each stylesheet into translet bytecode and its Templates
+ * objects are serializable, holding that bytecode. This cache stores them on disk
+ * so that after a restart a stylesheet whose content did not change is loaded
+ * from its bytecode instead of being compiled again.<br>
+ * Files are kept at a subdirectory for each TransformerFactory class and Java version,
+ * and are named after the SHA-256 hash of the
+ * stylesheet content. Each file also lists the files imported or included by
+ * the stylesheet, relative to its directory, with the hash of their content.
+ * A stored stylesheet is only used if all of them are still unchanged.<br>
+ * A deserialized Templates is bound to a new default factory, and any feature, attribute or
+ * URIResolver of the factory that compiled it is lost. Secure processing would be silently
+ * disabled, for example. So the cache is bypassed when the SharedTransformerFactory has any of them.<br>
+ * Files are written to a temporary name and then renamed, so several processes
+ * running as the same user may share the same cache directory.<br>
+ * <b>The cache directory must be trusted</b>. Its files are deserialized and
+ * the bytecode that they hold is run, so whoever can write at the directory can run
+ * code inside this process. The directory is rejected if it is not owned by the user
+ * that runs this process or if, on file systems with POSIX permissions, it is writable
+ * by its group or by others. Stored files and subdirectories which do not pass the same
+ * check are ignored. Templates which are not serializable are
+ * never stored, and any error reading or writing the cache just makes the
+ * stylesheet be compiled as usual.
+ * @author Sergio Montoro Ten
+ * @version 9.1
+ * @since 9.1
+ */
+final class TransletDiskCache {
+
+  private static final int MAGIC = 0x58534c54;
+  private static final int FORMAT = 1;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final File oBaseDir;
+  private final UserPrincipal oOwner;
+
+  // ----------------------------------------------------------
+
+  /**
+   * @param oBaseDir File Cache directory, it is created if it does not exist
+   * @throws IOException if the directory cannot be created, is not writable or is not trusted
+   */
+  TransletDiskCache(File oBaseDir) throws IOException {
+    final boolean bCreated = !oBaseDir.isDirectory();
+    if (bCreated && !oBaseDir.mkdirs())
+      throw new IOException("TransletDiskCache cannot create directory "+oBaseDir.getPath());
+    if (!oBaseDir.canWrite())
+      throw new IOException("TransletDiskCache cannot write at directory "+oBaseDir.getPath());
+    // The owner of a file created by this process is the user that runs it
+    Path oProbe = Files.createTempFile(oBaseDir.toPath(), "tpl", ".tmp");
+    try {
+      this.oOwner = Files.getOwner(oProbe);
+    } finally {
+      Files.delete(oProbe);
+    }
+    this.oBaseDir = oBaseDir;
+    if (bCreated) restrict(oBaseDir);
+    if (!isTrusted(oBaseDir))
+      throw new IOException("TransletDiskCache directory "+oBaseDir.getPath()+" is not owned by "+oOwner.getName()+" or it is writable by other users");
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * Load the compiled stylesheet from disk, or compile it and store the result.
+   * If the factory has features, attributes or a URIResolver then the stylesheet is
+   * always compiled and it is not stored.
+   * @param oFile File XSL file
+   * @param oShared SharedTransformerFactory
+   * @param oTracker DependencyTracker which receives the dependencies of the stylesheet
+   * @return Templates
+   * @throws TransformerConfigurationException if the stylesheet has to be compiled and compilation fails
+   */
+  Templates getTemplates(File oFile, SharedTransformerFactory oShared, DependencyTracker oTracker)
+    throws TransformerConfigurationException {
+
+    if (oShared.isConfigured()) return compile(oFile, oShared, oTracker);
+
+    String sHash = null;
+    File oStored = null;
+    try {
+      sHash = hash(oFile);
+      oStored = new File(getSubdirectory(oShared), sHash+".tpl");
+      if (oStored.exists() && isTrusted(oBaseDir) && isTrusted(oStored.getParentFile()) && isTrusted(oStored)) {
+        Templates oTemplates = read(oStored, oFile, oShared, oTracker);
+        if (null!=oTemplates) return oTemplates;
+      }
+    } catch (IOException xcpt) {
+      // Compile as usual, the compiler will report the error if the file cannot be read
+    }
+
+    Templates oTemplates = compile(oFile, oShared, oTracker);
+
+    if (null!=sHash && oTemplates instanceof Serializable) {
+      try {
+        write(oStored, oFile, oTemplates, oTracker);
+      } catch (IOException xcpt) {
+        // The cache is only an optimization
+      } catch (IllegalArgumentException xcpt) {
+        // A dependency cannot be expressed relative to the stylesheet directory
+      }
+    }
+
+    return oTemplates;
+  } // getTemplates
+
+  // ----------------------------------------------------------
+
+  private static Templates compile(File oFile, SharedTransformerFactory oShared, DependencyTracker oTracker)
+    throws TransformerConfigurationException {
+    StreamSource oStreamSrc = new StreamSource(oFile);
+    oStreamSrc.setSystemId(oFile);
+    return oShared.get(oTracker).newTemplates(oStreamSrc);
+  }
+
+  // ----------------------------------------------------------
+
+  private File getSubdirectory(SharedTransformerFactory oShared) {
+    final String sKey = oShared.getClassName()+"-"+System.getProperty("java.version");
+    return new File(oBaseDir, sKey.replaceAll("[^A-Za-z0-9._-]", "_"));
+  }
+
+  // ----------------------------------------------------------
+
+  /**
+   * @return boolean <b>true</b> if the file is owned by the user of this process and,
+   * when the file system supports POSIX permissions, it is not writable by its group or by others
+   */
+  private boolean isTrusted(File oFile) {
+    final Path oPath = oFile.toPath();
+    try {
+      if (!oOwner.equals(Files.getOwner(oPath, LinkOption.NOFOLLOW_LINKS))) return false;
+      if (null!=Files.getFileAttributeView(oPath, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS)) {
+        Set<PosixFilePermission> oPerms = Files.getPosixFilePermissions(oPath, LinkOption.NOFOLLOW_LINKS);
+        if (oPerms.contains(PosixFilePermission.GROUP_WRITE) || oPerms.contains(PosixFilePermission.OTHERS_WRITE)) return false;
+      }
+      return true;
+    } catch (IOException xcpt) {
+      return false;
+    } catch (UnsupportedOperationException xcpt) {
+      return false;
+    }
+  } // isTrusted
+
+  // ----------------------------------------------------------
+
+  /**
+   * Drop the group and others write permissions that the umask may have granted to a new directory
+   */
+  private void restrict(File oDir) throws IOException {
+    final Path oPath = oDir.toPath();
+    if (null!=Files.getFileAttributeView(oPath, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS) &&
+        oOwner.equals(Files.getOwner(oPath, LinkOption.NOFOLLOW_LINKS))) {
+      Set<PosixFilePermission> oPerms = Files.getPosixFilePermissions(oPath, LinkOption.NOFOLLOW_LINKS);
+      if (oPerms.remove(PosixFilePermission.GROUP_WRITE) | oPerms.remove(PosixFilePermission.OTHERS_WRITE))
+        Files.setPosixFilePermissions(oPath, oPerms);
+    }
+  } // restrict
+
+  // ----------------------------------------------------------
+
+  /**
+   * @return Templates or <b>null</b> if any of the dependencies changed
+   */
+  private Templates read(File oStored, File oFile, SharedTransformerFactory oShared, DependencyTracker oTracker)
+    throws IOException {
+    final Path oBase = StylesheetCache.SheetEntry.pathOf(oFile).getParent();
+    DataInputStream oIn = new DataInputStream(new BufferedInputStream(new FileInputStream(oStored)));
+    try {
+      if (oIn.readInt()!=MAGIC || oIn.readInt()!=FORMAT) return null;
+      final int nDeps = oIn.readInt();
+      File[] aDeps = new File[nDeps];
+      for (int d=0; d<nDeps; d++) {
+        aDeps[d] = oBase.resolve(oIn.readUTF()).normalize().toFile();
+        final String sDepHash = oIn.readUTF();
+        if (!aDeps[d].isFile() || !sDepHash.equals(hash(aDeps[d]))) return null;
+      }
+      Templates oTemplates;
+      try {
+        oTemplates = (Templates) new TemplatesInputStream(oIn, oShared.getClassName()).readObject();
+      } catch (ClassNotFoundException xcpt) {
+        return null;
+      } catch (ClassCastException xcpt) {
+        return null;
+      }
+      for (int d=0; d<nDeps; d++)
+        oTracker.dependencies.add(new Dependency(aDeps[d]));
+      return oTemplates;
+    } finally {
+      oIn.close();
+    }
+  } // read
+
+  // ----------------------------------------------------------
+
+  private void write(File oStored, File oFile, Templates oTemplates, DependencyTracker oTracker)
+    throws IOException {
+    final Path oBase = StylesheetCache.SheetEntry.pathOf(oFile).getParent();
+    final File oDir = oStored.getParentFile();
+    for (Dependency oDep : oTracker.dependencies)
+      if (oDep.isModified()) return;
+    if (!oDir.isDirectory()) {
+      if (!oDir.mkdirs()) return;
+      restrict(oDir);
+    }
+    if (!isTrusted(oDir)) return;
+    // Files.createTempFile() gives access only to the owner on POSIX file systems
+    File oTemp = Files.createTempFile(oDir.toPath(), "tpl", ".tmp").toFile();
+    try {
+      DataOutputStream oOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(oTemp)));
+      try {
+        oOut.writeInt(MAGIC);
+        oOut.writeInt(FORMAT);
+        oOut.writeInt(oTracker.dependencies.size());
+        for (Dependency oDep : oTracker.dependencies) {
+          oOut.writeUTF(oBase.relativize(oDep.path).toString());
+          oOut.writeUTF(hash(oDep.file));
+        }
+        ObjectOutputStream oObjs = new ObjectOutputStream(oOut);
+        oObjs.writeObject(oTemplates);
+        oObjs.flush();
+      } finally {
+        oOut.close();
+      }
+      try {
+        Files.move(oTemp.toPath(), oStored.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException xcpt) {
+        Files.move(oTemp.toPath(), oStored.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      if (oTemp.exists()) oTemp.delete();
+    }
+  } // write
+
+  // ----------------------------------------------------------
+
+  /**
+   * @return String Hexadecimal SHA-256 hash of file content
+   */
+  private static String hash(File oFile) throws IOException {
+    MessageDigest oDigest;
+    try {
+      oDigest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException xcpt) {
+      throw new IOException(xcpt.getMessage(), xcpt);
+    }
+    byte[] aBuffer = new byte[8192];
+    InputStream oIn = new FileInputStream(oFile);
+    try {
+      int iRead;
+      while ((iRead = oIn.read(aBuffer))>0)
+        oDigest.update(aBuffer, 0, iRead);
+    } finally {
+      oIn.close();
+    }
+    final byte[] aHash = oDigest.digest();
+    StringBuilder oHex = new StringBuilder(aHash.length*2);
+    for (int b=0; b<aHash.length; b++)
+      oHex.append(HEX[(aHash[b]>>4) & 0x0F]).append(HEX[aHash[b] & 0x0F]);
+    return oHex.toString();
+  } // hash
+
+  // ----------------------------------------------------------
+
+  /**
+   * ObjectInputStream which only accepts the classes that a compiled stylesheet is made of
+   */
+  private static final class TemplatesInputStream extends ObjectInputStream {
+    private final String sProcessorPackage;
+
+    TemplatesInputStream(InputStream oIn, String sFactoryClassName) throws IOException {
+      super(oIn);
+      // Package of the XSLTC processor, parent of the package of its TransformerFactory
+      final int iDot = sFactoryClassName.lastIndexOf('.', sFactoryClassName.lastIndexOf('.')-1);
+      this.sProcessorPackage = iDot<0 ? sFactoryClassName : sFactoryClassName.substring(0, iDot+1);
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass oDesc) throws IOException, ClassNotFoundException {
+      final String sName = oDesc.getName();
+      if (sName.startsWith(sProcessorPackage) || sName.equals("[[B") || sName.equals("[B") ||
+          sName.equals("java.lang.String") || sName.equals("java.lang.Integer") || sName.equals("java.lang.Number") ||
+          sName.equals("java.lang.Boolean") || sName.equals("java.util.Properties") || sName.equals("java.util.Hashtable") ||
+          sName.equals("java.util.HashMap"))
+        return super.resolveClass(oDesc);
+      throw new InvalidClassException(sName, "TransletDiskCache does not accept this class");
+    }
+  } // TemplatesInputStream
+
+} // TransletDiskCache